@@ -0,0 +1,145 @@
+package com.cloudera.sa.cm;
+
+import com.cloudera.api.swagger.client.ApiException;
+import com.cloudera.api.swagger.model.ApiImpalaQuery;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Search the time range window by window from the latest to the oldest, with window length planned by
+ * AdaptiveWindowPlanner. Each window is searched once. If CM scan limit is still reached, the rest of the
+ * window is planned again from the last end time reported by CM. If CM did not move the end time, the same
+ * window end is searched again with half the window, until the minimum window length is reached.
+ */
+public class AdaptiveQuerySearchResult implements QueryStream {
+    private static final Logger LOGGER = LoggerFactory.getLogger(AdaptiveQuerySearchResult.class);
+
+    private ImpalaQuerySearch search;
+    private AdaptiveWindowPlanner planner;
+    private String clusterName;
+    private String serviceName;
+    private String filter;
+    private int prefetchPages;
+
+    private long start;
+    // End of the part not searched yet.
+    private long windowEnd;
+    private long windowMillis;
+    private int windowQueries;
+    private QuerySearchResult current;
+    private Set<String> seenIds;
+    private boolean complete;
+
+    public AdaptiveQuerySearchResult(ImpalaQuerySearch search, AdaptiveWindowPlanner planner, String clusterName,
+                                     String serviceName, String filter, String from, String to, int prefetchPages) {
+        this.search = search;
+        this.planner = planner;
+        this.clusterName = clusterName;
+        this.serviceName = serviceName;
+        this.filter = filter;
+        this.prefetchPages = prefetchPages;
+
+        this.start = QueryAnalyzeUtil.parseIsoTime(from);
+        this.windowEnd = QueryAnalyzeUtil.parseIsoTime(to);
+        this.seenIds = new HashSet<>();
+        this.complete = true;
+    }
+
+    /**
+     * Get next query from current window. Move to next window if current one is finished.
+     * @return Next query. Null if all windows searched.
+     * @throws ApiException
+     */
+    public ApiImpalaQuery nextQuery() throws ApiException {
+        while (true) {
+            if (current == null && !nextWindow()) {
+                return null;
+            }
+            ApiImpalaQuery query = current.nextQuery();
+            if (query == null) {
+                finishWindow();
+                continue;
+            }
+            windowQueries += 1;
+            // Windows share their boundary so the same query may come twice.
+            if (query.getQueryId() == null || seenIds.add(query.getQueryId())) {
+                return query;
+            }
+        }
+    }
+
+    /**
+     * Start searching next window.
+     * @return False if the whole range is searched.
+     * @throws ApiException
+     */
+    private boolean nextWindow() throws ApiException {
+        if (windowEnd <= start) {
+            return false;
+        }
+        windowMillis = Math.min(planner.nextWindowMillis(), windowEnd - start);
+        windowQueries = 0;
+        String from = QueryAnalyzeUtil.formatIsoTime(windowEnd - windowMillis);
+        String to = QueryAnalyzeUtil.formatIsoTime(windowEnd);
+        LOGGER.info("Start searching window from=" + from + ", to=" + to);
+        current = new QuerySearchResult(search, clusterName, serviceName, filter, from, to, prefetchPages, false);
+        return true;
+    }
+
+    /**
+     * Record the finished window in the planner and move the end of the rest of the range.
+     * The end is kept to search again with a shorter window if the scan limit was reached without progress.
+     */
+    private void finishWindow() {
+        current.close();
+        if (!current.isComplete()) {
+            complete = false;
+        }
+
+        String limitEnd = current.getScanLimitEnd();
+        long nextEnd = windowEnd - windowMillis;
+        if (limitEnd != null) {
+            long limitEndMillis = QueryAnalyzeUtil.parseIsoTime(limitEnd);
+            // Only trust the last end time if the search moved on.
+            if (limitEndMillis < windowEnd && limitEndMillis > nextEnd) {
+                nextEnd = limitEndMillis;
+            } else if (limitEndMillis >= windowEnd) {
+                current = null;
+                if (planner.shrink(windowMillis)) {
+                    LOGGER.warn("Scan limit reached without progress at " + limitEnd
+                            + ". Searching the window again with half the length.");
+                    return;
+                }
+                LOGGER.error("Scan limit reached without progress at " + limitEnd + " with the minimum window of "
+                        + windowMillis + "ms. Queries of the window may be missing.");
+                complete = false;
+                windowEnd = nextEnd;
+                return;
+            }
+        }
+        planner.record(windowMillis, windowEnd - nextEnd, windowQueries, limitEnd != null);
+        windowEnd = nextEnd;
+        current = null;
+    }
+
+    /**
+     * Check if all windows are searched without errors or queries skipped at a scan limit.
+     * @return True if no result is lost because of errors or scan limits.
+     */
+    public boolean isComplete() {
+        return complete;
+    }
+
+    /**
+     * Stop searching current window.
+     */
+    public void close() {
+        if (current != null) {
+            current.close();
+            current = null;
+        }
+    }
+}
@@ -0,0 +1,142 @@
+package com.cloudera.sa.cm;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Plan the length of time windows searched from CM so that each window stays under the CM scan limit.
+ * The planner learns the query density (queries per minute) from the windows already searched, and the
+ * number of queries CM returns before the scan limit is reached from the windows that were cut.
+ * The next window is sized to return a bit less than that number of queries.
+ */
+public class AdaptiveWindowPlanner {
+
+    // Windows are planned to fill this part of the learned capacity.
+    private static final double HEADROOM = 0.8;
+    // Max growth of window length from one window to the next.
+    private static final double GROWTH = 2.0;
+    // Weight of the latest window when updating density and capacity.
+    private static final double ALPHA = 0.5;
+    // Max number of window lengths listed in the report.
+    private static final int MAX_REPORTED_WINDOWS = 50;
+
+    private long minWindowMillis;
+    private long maxWindowMillis;
+    private long nextWindowMillis;
+
+    // Queries per millisecond. 0 if not known yet.
+    private double density;
+    // Queries returned before scan limit is reached. 0 if not known yet.
+    private double capacity;
+
+    private int hits;
+    private int misses;
+    private long totalQueries;
+    private List<Long> windows;
+
+    public AdaptiveWindowPlanner(long initialWindowMillis, long minWindowMillis, long maxWindowMillis) {
+        this.minWindowMillis = minWindowMillis;
+        this.maxWindowMillis = maxWindowMillis;
+        this.nextWindowMillis = clamp(initialWindowMillis);
+        this.windows = new ArrayList<>();
+    }
+
+    /**
+     * Get length of next window to search.
+     * @return Window length in milliseconds.
+     */
+    public synchronized long nextWindowMillis() {
+        return nextWindowMillis;
+    }
+
+    /**
+     * Record result of one searched window and plan the next one.
+     * @param windowMillis Length of the window searched.
+     * @param coveredMillis Length of the window actually covered before scan limit reached.
+     * @param queries Number of queries returned in the covered part.
+     * @param limitReached True if CM scan limit was reached.
+     */
+    public synchronized void record(long windowMillis, long coveredMillis, long queries, boolean limitReached) {
+        windows.add(windowMillis);
+        totalQueries += queries;
+
+        if (coveredMillis > 0) {
+            density = update(density, (double) queries / coveredMillis);
+        }
+
+        if (limitReached) {
+            misses += 1;
+            if (queries > 0) {
+                capacity = update(capacity, queries);
+            }
+            // What CM could scan is the hard evidence here.
+            nextWindowMillis = clamp((long) (coveredMillis * HEADROOM));
+        } else {
+            hits += 1;
+            long planned = (long) (windowMillis * GROWTH);
+            if (capacity > 0 && density > 0) {
+                planned = Math.min(planned, (long) (capacity * HEADROOM / density));
+            }
+            nextWindowMillis = clamp(planned);
+        }
+    }
+
+    /**
+     * Plan half of a window that reached scan limit without CM moving its end time, to search it again.
+     * @param windowMillis Length of the window searched.
+     * @return False if the window is already at the minimum length and cannot be shrunk.
+     */
+    public synchronized boolean shrink(long windowMillis) {
+        windows.add(windowMillis);
+        misses += 1;
+        if (windowMillis <= minWindowMillis) {
+            return false;
+        }
+        nextWindowMillis = clamp(windowMillis / 2);
+        return true;
+    }
+
+    private double update(double current, double latest) {
+        return current == 0 ? latest : ALPHA * latest + (1 - ALPHA) * current;
+    }
+
+    private long clamp(long window) {
+        return Math.max(minWindowMillis, Math.min(maxWindowMillis, window));
+    }
+
+    /**
+     * Report window lengths and hit rate.
+     * @return Report string.
+     */
+    public synchronized String report() {
+        StringBuilder report = new StringBuilder();
+        int total = hits + misses;
+        report.append("Adaptive windows: ").append(total).append(" windows, ")
+                .append(hits).append(" under scan limit, ")
+                .append(misses).append(" reached scan limit");
+        if (total > 0) {
+            report.append(", hit rate ").append(String.format("%.1f%%", hits * 100.0 / total));
+
+            long min = Long.MAX_VALUE;
+            long max = 0;
+            long sum = 0;
+            for (long window : windows) {
+                min = Math.min(min, window);
+                max = Math.max(max, window);
+                sum += window;
+            }
+            report.append(String.format(", window minutes min/avg/max %.1f/%.1f/%.1f",
+                    min / 60000.0, sum / 60000.0 / total, max / 60000.0));
+        }
+        report.append(String.format(", density %.2f queries/minute", density * 60000));
+        report.append(", ").append(totalQueries).append(" queries");
+
+        if (!windows.isEmpty() && windows.size() <= MAX_REPORTED_WINDOWS) {
+            report.append(", window minutes:");
+            for (long window : windows) {
+                report.append(String.format(" %.1f", window / 60000.0));
+            }
+        }
+        return report.toString();
+    }
+}
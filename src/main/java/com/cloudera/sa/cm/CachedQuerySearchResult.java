@@ -0,0 +1,213 @@
+package com.cloudera.sa.cm;
+
+import com.cloudera.api.swagger.client.ApiException;
+import com.cloudera.api.swagger.model.ApiImpalaQuery;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.Set;
+
+/**
+ * Search queries through the local cache.
+ * The time range is split into cache buckets. Buckets found in cache are read from local files.
+ * Missing buckets are searched from CM and stored if sealed. Partial buckets at both ends of the
+ * range and buckets not sealed yet are always searched from CM.
+ * Buckets are read from the latest to the oldest, the same order as CM returns queries.
+ */
+public class CachedQuerySearchResult implements QueryStream {
+    private static final Logger LOGGER = LoggerFactory.getLogger(CachedQuerySearchResult.class);
+
+    private ImpalaQuerySearch search;
+    private QueryCache cache;
+    private String clusterName;
+    private String serviceName;
+    private String filter;
+
+    // Time ranges to read, each one as {start, end, cacheable}.
+    private LinkedList<long[]> segments;
+    private QueryCache.BucketReader currentReader;
+    private QueryStream currentStream;
+    private QueryCache.BucketWriter currentWriter;
+    private Set<String> seenIds;
+    private boolean complete;
+
+    private int cacheHits;
+    private int cacheMisses;
+    private int cacheWrites;
+
+    public CachedQuerySearchResult(ImpalaQuerySearch search, QueryCache cache, String clusterName, String serviceName,
+                                   String filter, String from, String to) {
+        this.search = search;
+        this.cache = cache;
+        this.clusterName = clusterName;
+        this.serviceName = serviceName;
+        this.filter = filter;
+        this.seenIds = new HashSet<>();
+        this.complete = true;
+
+        this.segments = new LinkedList<>();
+        long start = QueryAnalyzeUtil.parseIsoTime(from);
+        long end = QueryAnalyzeUtil.parseIsoTime(to);
+        long bucket = cache.getBucketMillis();
+
+        long firstBucket = (start + bucket - 1) / bucket * bucket;
+        long lastBucket = end / bucket * bucket;
+        if (firstBucket >= lastBucket) {
+            // Range is shorter than one bucket.
+            segments.add(new long[]{start, end, 0});
+            return;
+        }
+        if (end > lastBucket) {
+            segments.add(new long[]{lastBucket, end, 0});
+        }
+        for (long bucketStart = lastBucket - bucket; bucketStart >= firstBucket; bucketStart -= bucket) {
+            segments.add(new long[]{bucketStart, bucketStart + bucket, 1});
+        }
+        if (firstBucket > start) {
+            segments.add(new long[]{start, firstBucket, 0});
+        }
+    }
+
+    /**
+     * Get next query from cache or CM.
+     * @return Next query not seen before. Null if no more query.
+     * @throws ApiException
+     */
+    public ApiImpalaQuery nextQuery() throws ApiException {
+        while (true) {
+            ApiImpalaQuery query = nextInSegment();
+            if (query == null) {
+                if (!nextSegment()) {
+                    if (segments == null) {
+                        return null;
+                    }
+                    // Only report once.
+                    segments = null;
+                    LOGGER.info("Query cache: " + cacheHits + " buckets from cache, " + cacheMisses
+                            + " buckets from CM, " + cacheWrites + " buckets stored.");
+                    return null;
+                }
+                continue;
+            }
+            // Queries running across bucket boundary are returned in both buckets.
+            if (query.getQueryId() == null || seenIds.add(query.getQueryId())) {
+                return query;
+            }
+        }
+    }
+
+    /**
+     * Get next query in current segment.
+     * @return Next query. Null if current segment is finished.
+     * @throws ApiException
+     */
+    private ApiImpalaQuery nextInSegment() throws ApiException {
+        try {
+            if (currentReader != null) {
+                ApiImpalaQuery query = currentReader.next();
+                if (query == null) {
+                    currentReader.close();
+                    currentReader = null;
+                }
+                return query;
+            }
+
+            if (currentStream != null) {
+                ApiImpalaQuery query = currentStream.nextQuery();
+                if (query != null) {
+                    if (currentWriter != null) {
+                        currentWriter.write(query);
+                    }
+                    return query;
+                }
+                finishStream();
+            }
+            return null;
+        } catch (IOException e) {
+            throw new ApiException("Failed to access query cache", e);
+        }
+    }
+
+    /**
+     * Finish searching current segment from CM. Store it if complete.
+     * @throws IOException
+     */
+    private void finishStream() throws IOException {
+        currentStream.close();
+        if (!currentStream.isComplete()) {
+            complete = false;
+        }
+        if (currentWriter != null) {
+            if (currentStream.isComplete()) {
+                currentWriter.commit();
+                cacheWrites += 1;
+            } else {
+                currentWriter.abort();
+            }
+            currentWriter = null;
+        }
+        currentStream = null;
+    }
+
+    /**
+     * Open next segment.
+     * @return False if no more segment.
+     * @throws ApiException
+     */
+    private boolean nextSegment() throws ApiException {
+        if (segments == null || segments.isEmpty()) {
+            return false;
+        }
+        long[] segment = segments.poll();
+        long segmentStart = segment[0];
+        long segmentEnd = segment[1];
+        boolean cacheable = segment[2] == 1 && cache.isSealed(segmentEnd);
+
+        try {
+            if (cacheable && cache.contains(clusterName, serviceName, filter, segmentStart)) {
+                cacheHits += 1;
+                currentReader = cache.openReader(clusterName, serviceName, filter, segmentStart);
+                return true;
+            }
+
+            cacheMisses += 1;
+            currentStream = search.queryFromCM(clusterName, serviceName, filter,
+                    QueryAnalyzeUtil.formatIsoTime(segmentStart), QueryAnalyzeUtil.formatIsoTime(segmentEnd));
+            if (cacheable) {
+                currentWriter = cache.openWriter(clusterName, serviceName, filter, segmentStart);
+            }
+            return true;
+        } catch (IOException e) {
+            throw new ApiException("Failed to access query cache", e);
+        }
+    }
+
+    /**
+     * Check if all segments are searched without errors.
+     * @return True if no result is lost because of errors.
+     */
+    public boolean isComplete() {
+        return complete;
+    }
+
+    /**
+     * Close current segment. A bucket not finished is not stored.
+     */
+    public void close() {
+        if (currentReader != null) {
+            currentReader.close();
+            currentReader = null;
+        }
+        if (currentStream != null) {
+            currentStream.close();
+            currentStream = null;
+        }
+        if (currentWriter != null) {
+            currentWriter.abort();
+            currentWriter = null;
+        }
+    }
+}
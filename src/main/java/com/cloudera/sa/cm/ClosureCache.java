@@ -0,0 +1,241 @@
+package com.cloudera.sa.cm;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Upstream closure of each strongly connected component of the lineage graph, computed once and shared by
+ * all jobs.
+ * The closure of a component is every table the search reaches from it when no job source table is in the
+ * way: the tables of the component, the sources of their queries, and the closures of the components of
+ * those sources. A job can take a closure as it is only if none of the stop tables it could go through is
+ * in it, otherwise the search goes through the component table by table.
+ * The merged metrics of the queries in a closure are kept too, for jobs found from one closure only.
+ * Closures are kept until the max number of table ids is reached. Thread safe. Finished closures and
+ * metrics are published in atomic arrays, so reading them takes no lock. Only building them is synchronized.
+ */
+public class ClosureCache {
+    // Closure of a component not kept as it is over the max number of table ids.
+    private static final int[] NOT_KEPT = new int[0];
+
+    private LineageGraph graph;
+    private long maxTables;
+    private long storedTables;
+
+    // Sorted ids of the tables reached from each component, or NOT_KEPT. Null until computed.
+    private AtomicReferenceArray<int[]> reached;
+    private AtomicReferenceArray<TaskMetrics> metrics;
+
+    // Ids added to the closure being built are stamped, to drop duplicates without a set.
+    private int[] stamp;
+    private int epoch;
+    private int[] buffer;
+
+    private AtomicLong hits;
+    private AtomicLong stopped;
+    private AtomicLong overBudget;
+
+    /**
+     * @param graph Lineage graph.
+     * @param maxTables Max number of table ids to keep in all closures.
+     */
+    public ClosureCache(LineageGraph graph, long maxTables) {
+        this.graph = graph;
+        this.maxTables = maxTables;
+        this.reached = new AtomicReferenceArray<>(graph.componentCount());
+        this.metrics = new AtomicReferenceArray<>(graph.componentCount());
+        this.stamp = new int[graph.tableCount()];
+        this.buffer = new int[64];
+        this.hits = new AtomicLong();
+        this.stopped = new AtomicLong();
+        this.overBudget = new AtomicLong();
+    }
+
+    /**
+     * Get the lineage graph.
+     * @return Lineage graph.
+     */
+    public LineageGraph getGraph() {
+        return graph;
+    }
+
+    /**
+     * Get the closure of the component if the job can take it as it is.
+     * @param component Component.
+     * @param stopIds Sorted ids of traversable tables the job stops at.
+     * @return Sorted ids of the tables reached. Null if a stop table is in the closure, or it is not kept.
+     */
+    public int[] getClosure(int component, int[] stopIds) {
+        int[] closure = reached.get(component);
+        if (closure == null) {
+            closure = compute(component);
+        }
+        if (closure == NOT_KEPT) {
+            overBudget.incrementAndGet();
+            return null;
+        }
+        for (int stop : stopIds) {
+            if (Arrays.binarySearch(closure, stop) >= 0) {
+                stopped.incrementAndGet();
+                return null;
+            }
+        }
+        hits.incrementAndGet();
+        return closure;
+    }
+
+    /**
+     * Get merged metrics of the queries writing traversable tables in the closure.
+     * The metrics are shared, so only merge them into other metrics.
+     * @param component Component with its closure computed.
+     * @return Merged metrics.
+     */
+    public TaskMetrics getMetrics(int component) {
+        TaskMetrics merged = metrics.get(component);
+        return merged != null ? merged : mergeMetrics(component);
+    }
+
+    private synchronized TaskMetrics mergeMetrics(int component) {
+        if (metrics.get(component) != null) {
+            return metrics.get(component);
+        }
+        TaskMetrics merged = new TaskMetrics();
+        int[] rows = new int[16];
+        int rowCount = 0;
+        for (int id : reached.get(component)) {
+            if (!graph.isTraversable(id)) {
+                continue;
+            }
+            QueryBase query = graph.query(graph.producer(id));
+            if (query.getMetricsRow() != MetricsStore.NO_ID) {
+                if (rowCount == rows.length) {
+                    rows = Arrays.copyOf(rows, rowCount * 2);
+                }
+                rows[rowCount++] = query.getMetricsRow();
+            } else if (query.getMetrics() != null) {
+                merged.updateMetrics(query.getMetrics());
+            }
+        }
+        if (rowCount > 0) {
+            QueryBase.getMetricsStore().merge(rows, rowCount, merged);
+        }
+        metrics.set(component, merged);
+        return merged;
+    }
+
+    /**
+     * Compute closures of the component and of the components it reads from, sources first.
+     * @param component Component.
+     * @return Sorted ids of the tables reached. NOT_KEPT if not kept.
+     */
+    private synchronized int[] compute(int component) {
+        if (reached.get(component) != null) {
+            return reached.get(component);
+        }
+        int[] stack = new int[16];
+        int size = 0;
+        stack[size++] = component;
+        while (size > 0) {
+            int current = stack[size - 1];
+            if (reached.get(current) != null) {
+                size--;
+                continue;
+            }
+
+            // Closures of source components are needed first.
+            boolean pending = false;
+            boolean sourceSkipped = false;
+            for (int m = graph.memberStart(current); m < graph.memberEnd(current); m++) {
+                int query = graph.producer(graph.member(m));
+                for (int p = graph.sourceStart(query); p < graph.sourceEnd(query); p++) {
+                    int source = graph.component(graph.source(p));
+                    if (source == LineageGraph.NO_COMPONENT || source == current) {
+                        continue;
+                    }
+                    int[] closure = reached.get(source);
+                    if (closure == NOT_KEPT) {
+                        sourceSkipped = true;
+                    } else if (closure == null) {
+                        if (size == stack.length) {
+                            stack = Arrays.copyOf(stack, size * 2);
+                        }
+                        stack[size++] = source;
+                        pending = true;
+                    }
+                }
+            }
+            if (pending) {
+                continue;
+            }
+            size--;
+            if (sourceSkipped) {
+                reached.set(current, NOT_KEPT);
+            } else {
+                build(current);
+            }
+        }
+        return reached.get(component);
+    }
+
+    /**
+     * Build closure of the component from the closures of its source components.
+     * @param component Component.
+     */
+    private void build(int component) {
+        epoch++;
+        int count = 0;
+        for (int m = graph.memberStart(component); m < graph.memberEnd(component); m++) {
+            int member = graph.member(m);
+            count = add(member, count);
+            int query = graph.producer(member);
+            for (int p = graph.sourceStart(query); p < graph.sourceEnd(query); p++) {
+                int id = graph.source(p);
+                count = add(id, count);
+                int source = graph.component(id);
+                if (source != LineageGraph.NO_COMPONENT && source != component) {
+                    for (int upstream : reached.get(source)) {
+                        count = add(upstream, count);
+                    }
+                }
+            }
+        }
+        if (storedTables + count > maxTables) {
+            reached.set(component, NOT_KEPT);
+            return;
+        }
+        int[] closure = Arrays.copyOf(buffer, count);
+        Arrays.sort(closure);
+        storedTables += count;
+        reached.set(component, closure);
+    }
+
+    private int add(int id, int count) {
+        if (stamp[id] == epoch) {
+            return count;
+        }
+        stamp[id] = epoch;
+        if (count == buffer.length) {
+            buffer = Arrays.copyOf(buffer, count * 2);
+        }
+        buffer[count] = id;
+        return count + 1;
+    }
+
+    /**
+     * Report how often jobs could take a closure as it is.
+     * @return Report string.
+     */
+    public synchronized String report() {
+        int computed = 0;
+        int notKept = 0;
+        for (int c = 0; c < reached.length(); c++) {
+            int[] closure = reached.get(c);
+            computed += closure != null && closure != NOT_KEPT ? 1 : 0;
+            notKept += closure == NOT_KEPT ? 1 : 0;
+        }
+        return String.format("Closure cache: %d components, %d closures kept with %d table ids, %d not kept; "
+                        + "%d taken as is, %d stopped by job sources, %d not kept", reached.length(), computed,
+                storedTables, notKept, hits.get(), stopped.get(), overBudget.get());
+    }
+}
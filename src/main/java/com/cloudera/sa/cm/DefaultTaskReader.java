@@ -12,7 +12,8 @@ import java.util.*;
 /**
  * Default reader for Job information.
  * Input format text file.
- * Format: ID \t target_table1,target_table2,... \t source_table1,source_table2,...
+ * Format: ID \t target_table1,target_table2,... \t source_table1,source_table2,...[ \t run_time]
+ * Run time is optional in ISO8601 format. Lines of the same ID keep the latest run time.
  */
 public class DefaultTaskReader implements TaskReader {
 
@@ -28,12 +29,14 @@ public class DefaultTaskReader implements TaskReader {
 
     private Map<String, Set<String>> srcTbls;
     private Map<String, Set<String>> tarTbls;
+    private Map<String, Long> runTimes;
     private Iterator<String> keyItr;
     private String current;
 
     public DefaultTaskReader() {
         this.srcTbls = new HashMap<>();
         this.tarTbls = new HashMap<>();
+        this.runTimes = new HashMap<>();
 
     }
 
@@ -92,6 +95,15 @@ public class DefaultTaskReader implements TaskReader {
         return tarTbls.get(current);
     }
 
+    /**
+     * Get run time for current ID.
+     * @return Milliseconds since epoch. QueryBase.NO_TIME if not in the input.
+     */
+    public long nextRunTime() {
+        Long runTime = runTimes.get(current);
+        return runTime == null ? QueryBase.NO_TIME : runTime;
+    }
+
     /**
      * Parse line in the input file
      * @param line Line read from input file.
@@ -113,5 +125,12 @@ public class DefaultTaskReader implements TaskReader {
         } else {
             tarTbls.put(id, targetTbls);
         }
+
+        if(split.length > 3 && !split[3].trim().isEmpty()) {
+            long runTime = QueryAnalyzeUtil.parseIsoTime(split[3]);
+            if(!runTimes.containsKey(id) || runTimes.get(id) < runTime) {
+                runTimes.put(id, runTime);
+            }
+        }
     }
 }
@@ -0,0 +1,81 @@
+package com.cloudera.sa.cm;
+
+import java.util.Collection;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Exclude list and exclude keys of tables, with the keys compiled into one KeywordMatcher.
+ * The keyword result of each table is computed once and kept, so later checks are a hash lookup.
+ * Same results as QueryAnalyzeUtil.hasKeyWd and allExclude. Thread safe.
+ */
+public class ExclusionFilter {
+    private Set<String> excludeTbls;
+    private KeywordMatcher matcher;
+    private ConcurrentMap<String, Boolean> hasKey;
+
+    /**
+     * @param excludeTbls Tables ignore as source table.
+     * @param excludeKeys Keys if found in table should be ignored.
+     */
+    public ExclusionFilter(Set<String> excludeTbls, Set<String> excludeKeys) {
+        this.excludeTbls = excludeTbls;
+        this.matcher = new KeywordMatcher(excludeKeys);
+        this.hasKey = new ConcurrentHashMap<>();
+    }
+
+    /**
+     * Check if the table is in the exclude list.
+     * @param table Table name.
+     * @return True if excluded.
+     */
+    public boolean isExcluded(String table) {
+        return excludeTbls.contains(table);
+    }
+
+    /**
+     * Check if the table name has an exclude key.
+     * @param table Table name.
+     * @return True if it has an exclude key.
+     */
+    public boolean hasExcludeKey(String table) {
+        Boolean result = hasKey.get(table);
+        if (result == null) {
+            result = matcher.matches(table);
+            hasKey.put(table, result);
+        }
+        return result;
+    }
+
+    /**
+     * Check if the table is in the exclude list or has an exclude key.
+     * @param table Table name.
+     * @return True if excluded either way.
+     */
+    public boolean isIgnored(String table) {
+        return excludeTbls.contains(table) || hasExcludeKey(table);
+    }
+
+    /**
+     * Check if all the tables are in the exclude list or have an exclude key.
+     * @param tables Tables to check.
+     * @return True if all tables are excluded.
+     */
+    public boolean allExclude(Collection<String> tables) {
+        for (String table : tables) {
+            if (!isIgnored(table)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Get number of tables with the keyword result kept.
+     * @return Number of tables.
+     */
+    public int size() {
+        return hasKey.size();
+    }
+}
@@ -12,16 +12,21 @@ import com.google.common.reflect.TypeToken;
 import org.apache.http.HttpEntity;
 import org.apache.http.client.methods.CloseableHttpResponse;
 import org.apache.http.client.methods.HttpGet;
+import org.apache.http.client.utils.URIBuilder;
 import org.apache.http.impl.client.CloseableHttpClient;
 import org.apache.http.impl.client.HttpClients;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
 import org.apache.http.util.EntityUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.ByteArrayInputStream;
 import java.io.IOException;
+import java.io.InputStreamReader;
 import java.lang.reflect.Type;
+import java.net.URISyntaxException;
 import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
@@ -33,7 +38,14 @@ import java.util.Base64;
 public class ImpalaQuerySearch {
     private static final Logger LOGGER = LoggerFactory.getLogger(ImpalaQuerySearch.class);
 
+    // Default max connections kept in the HTTP pool for detail queries.
+    public static final int DEFAULT_MAX_HTTP_CONNECTIONS = 8;
+
     private ApiClient cmClient;
+    // HTTP client shared by all detail queries so connections are reused.
+    private PoolingHttpClientConnectionManager connectionManager;
+    private CloseableHttpClient httpClient;
+    private String authHeader;
     private String host;
     private int port;
     private String version;
@@ -43,6 +55,20 @@ public class ImpalaQuerySearch {
     private boolean isSSLEnabled;
     private String pemPath;
 
+    // Number of sub time ranges to split one search into. 1 means search sequentially.
+    private int fetchSlices;
+    // Number of threads to search the sub time ranges.
+    private int fetchThreads;
+    // Number of pages to search ahead while the current page is consumed. 0 to disable.
+    private int prefetchPages;
+    // Local cache of searched queries. Null to disable.
+    private QueryCache queryCache;
+    private JSON json;
+    // Decode query search response as a stream and keep only used fields.
+    private boolean streamingDecode;
+    // Planner of window length for adaptive search. Null to disable.
+    private AdaptiveWindowPlanner windowPlanner;
+
     public ImpalaQuerySearch(String host, Integer port, String version, String username, String password,
                              Boolean isSSLEnabled, String pemPath) {
         this.host = host;
@@ -54,7 +80,43 @@ public class ImpalaQuerySearch {
         this.isSSLEnabled = isSSLEnabled;
         this.pemPath = pemPath;
 
+        this.fetchSlices = 1;
+        this.fetchThreads = 1;
+        this.prefetchPages = 0;
+
         cmClient = getCMClient(host, port, version, username, password, isSSLEnabled, pemPath);
+        json = new JSON(cmClient);
+
+        String auth = username + ":" + password;
+        byte[] encodedAuth = Base64.getUrlEncoder().encode(auth.getBytes(Charset.forName("US-ASCII")));
+        authHeader = "Basic " + new String(encodedAuth);
+
+        connectionManager = new PoolingHttpClientConnectionManager();
+        setMaxHttpConnections(DEFAULT_MAX_HTTP_CONNECTIONS);
+        httpClient = HttpClients.custom().setConnectionManager(connectionManager).build();
+    }
+
+    /**
+     * Set max connections of the HTTP pool. Should be no less than the threads doing detail queries.
+     * @param maxConnections Max connections to CM.
+     */
+    public void setMaxHttpConnections(int maxConnections) {
+        connectionManager.setMaxTotal(maxConnections);
+        connectionManager.setDefaultMaxPerRoute(maxConnections);
+    }
+
+    /**
+     * Close the shared HTTP client and report adaptive windows if used.
+     */
+    public void close() {
+        if (windowPlanner != null) {
+            LOGGER.info(windowPlanner.report());
+        }
+        try {
+            httpClient.close();
+        } catch (IOException e) {
+            LOGGER.error("Error in closing HTTP client", e);
+        }
     }
 
     public ApiClient getCMClient(String host, Integer port, String version, String username, String password) {
@@ -126,16 +188,67 @@ public class ImpalaQuerySearch {
                                             String to, int limit, int offset) throws ApiException {
         ApiImpalaQueryResponse result;
 
-        ImpalaQueriesResourceApi apiInstance = new ImpalaQueriesResourceApi(cmClient);
         if(LOGGER.isDebugEnabled()) {
             LOGGER.debug(clusterName + "," + serviceName + "," + filter + "," + from + "," + limit + "," + offset + "," + to);
         }
 
+        if (streamingDecode) {
+            return queryRawStreaming(clusterName, serviceName, filter, from, to, limit, offset);
+        }
+
+        ImpalaQueriesResourceApi apiInstance = new ImpalaQueriesResourceApi(cmClient);
         result = apiInstance.getImpalaQueries(clusterName, serviceName, filter, from, limit, offset, to);
 
         return result;
     }
 
+    /**
+     * Get query response through HTTP and decode it as a stream. Only fields used by the analyzer are kept
+     * in each query, see StreamingQueryDecoder.
+     * @param clusterName Cluster name. Usually cluster.
+     * @param serviceName Impala Service name. Usually impala.
+     * @param filter The filter for Impala query.
+     * @param from ISO8601 format time for the start time of query.
+     * @param to ISO8601 format time for the end time of query.
+     * @param limit Result limit. Max value is 1000.
+     * @param offset Start of next query.
+     * @return Results of each query with only used fields.
+     * @throws ApiException
+     */
+    public ApiImpalaQueryResponse queryRawStreaming(String clusterName, String serviceName, String filter, String from,
+                                                    String to, int limit, int offset) throws ApiException {
+        HttpGet get;
+        try {
+            URIBuilder uri = new URIBuilder(getBaseUrl(host, port, version, false) + "/clusters/" + clusterName
+                    + "/services/" + serviceName + "/impalaQueries");
+            if (filter != null) {
+                uri.addParameter("filter", filter);
+            }
+            uri.addParameter("from", from);
+            uri.addParameter("limit", String.valueOf(limit));
+            uri.addParameter("offset", String.valueOf(offset));
+            uri.addParameter("to", to);
+            get = new HttpGet(uri.build());
+        } catch (URISyntaxException e) {
+            throw new ApiException(e);
+        }
+        get.addHeader("Authorization", authHeader);
+
+        try (CloseableHttpResponse response = httpClient.execute(get)) {
+            HttpEntity entity = response.getEntity();
+            int status = response.getStatusLine().getStatusCode();
+            if (status != 200) {
+                String message = EntityUtils.toString(entity, "UTF-8");
+                throw new ApiException(status, message);
+            }
+            try (InputStreamReader in = new InputStreamReader(entity.getContent(), StandardCharsets.UTF_8)) {
+                return StreamingQueryDecoder.decode(in);
+            }
+        } catch (IOException e) {
+            throw new ApiException(e);
+        }
+    }
+
     /**
      * Get detailed query information. Useful if SQL is too long.
      * @param clusterName Cluster name. Usually cluster.
@@ -166,34 +279,21 @@ public class ImpalaQuerySearch {
      * @return Impala detailed query response.
      */
     public ApiImpalaQueryDetailsResponse queryDetailThroughHTTP(String clusterName, String serviceName, String queryId) {
-        String auth = username + ":" + password;
-        byte[] encodedAuth = Base64.getUrlEncoder().encode(auth.getBytes(Charset.forName("US-ASCII")));
-        String authHeader = "Basic " + new String(encodedAuth);
-
-        CloseableHttpClient client = HttpClients.createDefault();
-
         String baseUrl = getBaseUrl(host, port, version, false);
 
         HttpGet get = new HttpGet(baseUrl + "/clusters/" + clusterName + "/services/" + serviceName + "/impalaQueries/" + queryId);
         get.addHeader("Authorization", authHeader);
 
         String responseContent = null;
-        CloseableHttpResponse response = null;
-        try {
-            response = client.execute(get);
+        // Connection is returned to the shared pool once the response is consumed and closed.
+        try (CloseableHttpResponse response = httpClient.execute(get)) {
+            HttpEntity entity = response.getEntity();
             if(response.getStatusLine().getStatusCode() == 200) {
-                HttpEntity entity = response.getEntity();
                 responseContent = EntityUtils.toString(entity, "UTF-8");
+            } else {
+                EntityUtils.consume(entity);
             }
 
-            if (response != null) {
-                response.close();
-            }
-            if (client != null) {
-                client.close();
-            }
-
-            JSON json = new JSON(cmClient);
             Type returnType = new TypeToken<ApiImpalaQueryDetailsResponse>(){}.getType();
 
             return (ApiImpalaQueryDetailsResponse) json.deserialize(responseContent, returnType);
@@ -207,16 +307,109 @@ public class ImpalaQuerySearch {
     /**
      * Query list of Impala queries. Note that the queries can be too long to store the whole query.
      * Use queryDetailThroughHTTP to get the whole SQL with ID returned.
+     * If more than one fetch slice is set, the time range is split and searched concurrently.
+     * @param clusterName Cluster name. Usually cluster.
+     * @param serviceName Service name. Usually impala.
+     * @param filter The filter for Impala query.
+     * @param from ISO8601 format time for the start time of query.
+     * @param to ISO8601 format time for the end time of query.
+     * @return QueryStream to iterate query result.
+     * @throws ApiException
+     */
+    public QueryStream query(String clusterName, String serviceName, String filter, String from, String to) throws ApiException {
+        if (queryCache != null) {
+            return new CachedQuerySearchResult(this, queryCache, clusterName, serviceName, filter, from, to);
+        }
+        return queryFromCM(clusterName, serviceName, filter, from, to);
+    }
+
+    /**
+     * Query list of Impala queries directly from CM without the local cache.
      * @param clusterName Cluster name. Usually cluster.
      * @param serviceName Service name. Usually impala.
      * @param filter The filter for Impala query.
      * @param from ISO8601 format time for the start time of query.
      * @param to ISO8601 format time for the end time of query.
-     * @return QuerySearchResult to iterate query result.
+     * @return QueryStream to iterate query result.
      * @throws ApiException
      */
-    public QuerySearchResult query(String clusterName, String serviceName, String filter, String from, String to) throws ApiException {
-        return new QuerySearchResult(cmClient, clusterName, serviceName, filter, from, to);
+    public QueryStream queryFromCM(String clusterName, String serviceName, String filter, String from, String to) throws ApiException {
+        if (fetchSlices > 1) {
+            return new ParallelQuerySearchResult(this, clusterName, serviceName, filter, from, to, fetchSlices, fetchThreads);
+        }
+        if (windowPlanner != null) {
+            return new AdaptiveQuerySearchResult(this, windowPlanner, clusterName, serviceName, filter, from, to, prefetchPages);
+        }
+        return new QuerySearchResult(this, clusterName, serviceName, filter, from, to, prefetchPages);
+    }
+
+    /**
+     * Set number of sub time ranges for one search.
+     * @param fetchSlices Number of sub time ranges.
+     */
+    public void setFetchSlices(int fetchSlices) {
+        this.fetchSlices = fetchSlices;
+    }
+
+    /**
+     * Set if query search response is decoded as a stream with only used fields kept.
+     * Only available if SSL is not enabled, as the HTTP client does not use the CA cert.
+     * @param streamingDecode True to decode as a stream.
+     */
+    public void setStreamingDecode(boolean streamingDecode) {
+        if (streamingDecode && isSSLEnabled) {
+            LOGGER.warn("Streaming decode is not supported with SSL. Using CM API instead.");
+            streamingDecode = false;
+        }
+        this.streamingDecode = streamingDecode;
+    }
+
+    /**
+     * Set planner to search with adaptive window length. Not used if fetch slices is more than 1.
+     * @param windowPlanner Window planner. Null to disable.
+     */
+    public void setWindowPlanner(AdaptiveWindowPlanner windowPlanner) {
+        this.windowPlanner = windowPlanner;
+    }
+
+    /**
+     * Set local cache of searched queries.
+     * @param queryCache Query cache. Null to disable.
+     */
+    public void setQueryCache(QueryCache queryCache) {
+        this.queryCache = queryCache;
+    }
+
+    /**
+     * Get JSON serializer of CM API models.
+     * @return JSON serializer.
+     */
+    public JSON getJson() {
+        return json;
+    }
+
+    /**
+     * Set number of pages to search ahead.
+     * @param prefetchPages Number of pages. 0 to disable prefetch.
+     */
+    public void setPrefetchPages(int prefetchPages) {
+        this.prefetchPages = prefetchPages;
+    }
+
+    /**
+     * Get number of pages to search ahead.
+     * @return Number of pages.
+     */
+    public int getPrefetchPages() {
+        return prefetchPages;
+    }
+
+    /**
+     * Set number of threads to search sub time ranges.
+     * @param fetchThreads Number of threads.
+     */
+    public void setFetchThreads(int fetchThreads) {
+        this.fetchThreads = fetchThreads;
     }
 
 }
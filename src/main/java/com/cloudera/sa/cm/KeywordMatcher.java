@@ -0,0 +1,154 @@
+package com.cloudera.sa.cm;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Check if a text contains any of the keywords, in one pass over the text whatever the number of keywords.
+ * The keywords are compiled into an Aho-Corasick automaton: a trie of the keywords, where each state also
+ * links to the longest suffix of it which is a prefix of some keyword, so a failed match never goes back
+ * in the text.
+ * Same result as calling String.contains for each keyword. Thread safe once built.
+ */
+public class KeywordMatcher {
+    private static final int NO_STATE = -1;
+
+    // Transitions in an open addressing table with key (state << 16 | char).
+    private long[] keys;
+    private int[] next;
+    private int mask;
+
+    // Failure link of each state.
+    private int[] fail;
+    // Some keyword ends at the state or at a state on its failure links.
+    private boolean[] output;
+    // An empty keyword is contained in every text.
+    private boolean matchesAll;
+
+    /**
+     * @param keywords Keywords to match.
+     */
+    public KeywordMatcher(Collection<String> keywords) {
+        // Build the trie. State 0 is the root.
+        List<Map<Character, Integer>> children = new ArrayList<>();
+        List<Boolean> terminal = new ArrayList<>();
+        children.add(new HashMap<Character, Integer>());
+        terminal.add(false);
+        int transitions = 0;
+        for (String keyword : keywords) {
+            if (keyword.isEmpty()) {
+                matchesAll = true;
+                continue;
+            }
+            int state = 0;
+            for (int i = 0; i < keyword.length(); i++) {
+                Integer child = children.get(state).get(keyword.charAt(i));
+                if (child == null) {
+                    child = children.size();
+                    children.add(new HashMap<Character, Integer>());
+                    terminal.add(false);
+                    children.get(state).put(keyword.charAt(i), child);
+                    transitions++;
+                }
+                state = child;
+            }
+            terminal.set(state, true);
+        }
+
+        int capacity = Integer.highestOneBit(Math.max(2, transitions * 2) - 1) << 1;
+        keys = new long[capacity];
+        Arrays.fill(keys, -1L);
+        next = new int[capacity];
+        mask = capacity - 1;
+        for (int state = 0; state < children.size(); state++) {
+            for (Map.Entry<Character, Integer> child : children.get(state).entrySet()) {
+                putTransition(state, child.getKey(), child.getValue());
+            }
+        }
+
+        // Failure links in breadth first order, so links of shorter prefixes are set first.
+        fail = new int[children.size()];
+        output = new boolean[children.size()];
+        LinkedList<Integer> queue = new LinkedList<>();
+        for (Integer child : children.get(0).values()) {
+            fail[child] = 0;
+            output[child] = terminal.get(child);
+            queue.add(child);
+        }
+        while (!queue.isEmpty()) {
+            int state = queue.poll();
+            for (Map.Entry<Character, Integer> entry : children.get(state).entrySet()) {
+                int child = entry.getValue();
+                int link = fail[state];
+                while (link != 0 && transition(link, entry.getKey()) == NO_STATE) {
+                    link = fail[link];
+                }
+                int target = transition(link, entry.getKey());
+                fail[child] = target == NO_STATE ? 0 : target;
+                output[child] = terminal.get(child) || output[fail[child]];
+                queue.add(child);
+            }
+        }
+    }
+
+    private static long key(int state, char c) {
+        return ((long) state << 16) | c;
+    }
+
+    private static int slot(long key, int mask) {
+        long hash = key * 0x9E3779B97F4A7C15L;
+        return (int) (hash >>> 32) & mask;
+    }
+
+    private void putTransition(int state, char c, int target) {
+        long key = key(state, c);
+        int slot = slot(key, mask);
+        while (keys[slot] != -1L) {
+            slot = (slot + 1) & mask;
+        }
+        keys[slot] = key;
+        next[slot] = target;
+    }
+
+    private int transition(int state, char c) {
+        long key = key(state, c);
+        int slot = slot(key, mask);
+        while (keys[slot] != -1L) {
+            if (keys[slot] == key) {
+                return next[slot];
+            }
+            slot = (slot + 1) & mask;
+        }
+        return NO_STATE;
+    }
+
+    /**
+     * Check if the text contains any keyword.
+     * @param text Text to check.
+     * @return True if any keyword is found.
+     */
+    public boolean matches(String text) {
+        if (matchesAll) {
+            return true;
+        }
+        int state = 0;
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            int target = transition(state, c);
+            while (target == NO_STATE && state != 0) {
+                state = fail[state];
+                target = transition(state, c);
+            }
+            state = target == NO_STATE ? 0 : target;
+            if (output[state]) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
@@ -0,0 +1,597 @@
+package com.cloudera.sa.cm;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Get source and target tables of a statement in one pass over its tokens, without building an AST.
+ * INSERT / UPSERT and CREATE TABLE AS SELECT give tables as in QueryBase. Sources are the tables after
+ * FROM and JOIN in query context, minus the aliases of the top level WITH clause.
+ * Anything the tokenizer is not sure about, like quoted names, nested WITH, unbalanced parentheses or
+ * CREATE VIEW, is reported as not confident so the caller can fall back to the Impala FE parser.
+ */
+public class LightweightTableExtractor {
+    private static final Logger LOGGER = LoggerFactory.getLogger(LightweightTableExtractor.class);
+
+    /**
+     * How statements are parsed.
+     * IMPALA: Impala FE parser only.
+     * FAST: This extractor, with Impala FE parser as fall back if not confident.
+     * VERIFY: Both, reporting statements they disagree on. Impala FE result is used.
+     */
+    public enum Mode {
+        IMPALA, FAST, VERIFY
+    }
+
+    private static final int IDENT = 0;
+    private static final int QUOTED_IDENT = 1;
+    private static final int LITERAL = 2;
+    private static final int SYMBOL = 3;
+
+    // Statements QueryBase does not take tables from.
+    private static final Set<String> IGNORED_STATEMENTS = new HashSet<>(Arrays.asList(
+            "select", "values", "alter", "drop", "compute", "refresh", "invalidate", "show", "describe", "use",
+            "set", "load", "truncate", "update", "delete", "grant", "revoke", "comment", "shutdown"));
+
+    // Words that can follow a table reference, so they are never taken as its alias.
+    private static final Set<String> KEYWORDS = new HashSet<>(Arrays.asList(
+            "where", "join", "inner", "left", "right", "full", "outer", "cross", "semi", "anti", "on", "using",
+            "group", "order", "having", "limit", "offset", "union", "except", "intersect", "minus", "window",
+            "tablesample", "select", "from", "as", "straight_join", "and", "or", "not", "when", "then", "else",
+            "end", "partition", "values", "with", "into", "insert", "all", "distinct"));
+
+    private static final Set<String> QUERY_START = new HashSet<>(Arrays.asList("select", "with", "values"));
+
+    private AtomicLong fastCount = new AtomicLong();
+    private AtomicLong fallbackCount = new AtomicLong();
+    private AtomicLong verifyCount = new AtomicLong();
+    private AtomicLong disagreeCount = new AtomicLong();
+
+    /**
+     * Get tables of the statement.
+     * @param statement SQL statement.
+     * @return Tables found and if the result can be trusted.
+     */
+    public static Result extract(String statement) {
+        Tokens tokens = tokenize(statement.toLowerCase());
+        if (tokens == null) {
+            return Result.notConfident("unclosed quote or comment");
+        }
+        return new Extraction(tokens).run();
+    }
+
+    /**
+     * Get aliases of the WITH clause at the start of the statement, like in WITH ... INSERT.
+     * @param statement SQL statement.
+     * @return Aliases in lower case. Empty if no WITH clause. Null if the clause is not as expected.
+     */
+    public static Set<String> getLeadingWithAliases(String statement) {
+        Tokens tokens = tokenize(statement.toLowerCase());
+        if (tokens == null) {
+            return null;
+        }
+        Extraction extraction = new Extraction(tokens);
+        if (!"with".equals(extraction.text(0))) {
+            return new HashSet<>();
+        }
+        return extraction.skipWith(0, true) < 0 ? null : extraction.cteNames;
+    }
+
+    /**
+     * Count a statement taken from this extractor.
+     */
+    public void recordFast() {
+        fastCount.incrementAndGet();
+    }
+
+    /**
+     * Count a statement sent to the Impala FE parser because this extractor was not confident.
+     * @param result Result of this extractor.
+     */
+    public void recordFallback(Result result) {
+        fallbackCount.incrementAndGet();
+        if (LOGGER.isDebugEnabled()) {
+            LOGGER.debug("Fall back to Impala parser: " + result.getReason());
+        }
+    }
+
+    /**
+     * Compare the result with tables from the Impala FE parser and report if they disagree.
+     * @param statement SQL statement.
+     * @param result Result of this extractor.
+     * @param source Source tables from Impala FE parser.
+     * @param target Target tables from Impala FE parser.
+     * @return True if both agree or this extractor was not confident.
+     */
+    public boolean verify(String statement, Result result, Set<String> source, Set<String> target) {
+        verifyCount.incrementAndGet();
+        if (!result.isConfident()) {
+            fallbackCount.incrementAndGet();
+            return true;
+        }
+        if (result.getSource().equals(source) && result.getTarget().equals(target)) {
+            return true;
+        }
+        disagreeCount.incrementAndGet();
+        LOGGER.warn("Table extractors disagree. Impala parser: source=" + source + ", target=" + target
+                + ". Fast extractor: source=" + result.getSource() + ", target=" + result.getTarget()
+                + ". SQL: " + statement);
+        return false;
+    }
+
+    /**
+     * Report how many statements were extracted, fell back or disagreed.
+     * @return Report string.
+     */
+    public String report() {
+        StringBuilder report = new StringBuilder("Table extractor: ");
+        report.append(fastCount.get()).append(" fast, ")
+                .append(fallbackCount.get()).append(" not confident");
+        if (verifyCount.get() > 0) {
+            report.append(", ").append(verifyCount.get()).append(" verified, ")
+                    .append(disagreeCount.get()).append(" disagreed");
+        }
+        return report.toString();
+    }
+
+    /**
+     * Split the statement into identifiers, literals and symbols. Comments and whitespace are dropped.
+     * @param statement Statement in lower case.
+     * @return Tokens. Null if a quote or comment is not closed.
+     */
+    private static Tokens tokenize(String statement) {
+        Tokens tokens = new Tokens();
+        int length = statement.length();
+        int i = 0;
+        while (i < length) {
+            char c = statement.charAt(i);
+            if (Character.isWhitespace(c)) {
+                i++;
+            } else if (c == '-' && i + 1 < length && statement.charAt(i + 1) == '-') {
+                int end = statement.indexOf('\n', i);
+                i = end < 0 ? length : end + 1;
+            } else if (c == '/' && i + 1 < length && statement.charAt(i + 1) == '*') {
+                int end = statement.indexOf("*/", i + 2);
+                if (end < 0) {
+                    return null;
+                }
+                i = end + 2;
+            } else if (c == '\'' || c == '"') {
+                i = skipQuoted(statement, i, c);
+                if (i < 0) {
+                    return null;
+                }
+                tokens.add("?", LITERAL);
+            } else if (isIdentifierStart(c)) {
+                StringBuilder name = new StringBuilder();
+                boolean quoted = false;
+                while (i < length) {
+                    char ch = statement.charAt(i);
+                    if (ch == '`') {
+                        int end = statement.indexOf('`', i + 1);
+                        if (end < 0) {
+                            return null;
+                        }
+                        name.append(statement, i + 1, end);
+                        quoted = true;
+                        i = end + 1;
+                    } else if (Character.isLetterOrDigit(ch) || ch == '_' || ch == '.' || ch == '$') {
+                        name.append(ch);
+                        i++;
+                    } else {
+                        break;
+                    }
+                }
+                String text = name.toString();
+                if (!quoted && isNumber(text)) {
+                    tokens.add("?", LITERAL);
+                } else {
+                    tokens.add(text, quoted ? QUOTED_IDENT : IDENT);
+                }
+            } else {
+                tokens.add(String.valueOf(c), SYMBOL);
+                i++;
+            }
+        }
+        return tokens;
+    }
+
+    private static boolean isIdentifierStart(char c) {
+        return Character.isLetterOrDigit(c) || c == '_' || c == '`';
+    }
+
+    private static boolean isNumber(String text) {
+        return text.matches("\\d+(\\.\\d*)?(e\\d+)?|\\.\\d+");
+    }
+
+    private static int skipQuoted(String statement, int start, char quote) {
+        int i = start + 1;
+        while (i < statement.length()) {
+            char c = statement.charAt(i);
+            if (c == '\\') {
+                i += 2;
+            } else if (c == quote) {
+                return i + 1;
+            } else {
+                i++;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Tokens of one statement.
+     */
+    private static class Tokens {
+        private List<String> texts = new ArrayList<>();
+        private List<Integer> types = new ArrayList<>();
+
+        private void add(String text, int type) {
+            texts.add(text);
+            types.add(type);
+        }
+    }
+
+    /**
+     * State of extracting tables from one statement.
+     */
+    private static class Extraction {
+        private List<String> texts;
+        private List<Integer> types;
+        private Set<String> source = new HashSet<>();
+        private Set<String> target = new HashSet<>();
+        private Set<String> cteNames = new HashSet<>();
+        // Positions of WITH that start a top level WITH clause.
+        private Set<Integer> topWith = new HashSet<>();
+
+        private Extraction(Tokens tokens) {
+            this.texts = tokens.texts;
+            this.types = tokens.types;
+        }
+
+        private String text(int i) {
+            return i >= 0 && i < texts.size() ? texts.get(i) : "";
+        }
+
+        private boolean isName(int i) {
+            return i < texts.size() && types.get(i) == IDENT && !KEYWORDS.contains(texts.get(i));
+        }
+
+        private Result run() {
+            if (texts.isEmpty()) {
+                return Result.notConfident("empty statement");
+            }
+            // Only one statement is expected.
+            for (int i = 0; i < texts.size(); i++) {
+                if (";".equals(texts.get(i)) && i != texts.size() - 1) {
+                    return Result.notConfident("multiple statements");
+                }
+            }
+
+            int i = 0;
+            if ("with".equals(text(0))) {
+                i = skipWith(0);
+                if (i < 0) {
+                    return Result.notConfident("unexpected WITH clause");
+                }
+            }
+
+            String head = text(i);
+            int bodyStart;
+            if ("insert".equals(head) || "upsert".equals(head)) {
+                int j = i + 1;
+                if (!"into".equals(text(j)) && !"overwrite".equals(text(j))) {
+                    return Result.notConfident("unexpected INSERT");
+                }
+                j++;
+                if ("table".equals(text(j))) {
+                    j++;
+                }
+                if (types.size() <= j || types.get(j) != IDENT) {
+                    return Result.notConfident("unexpected INSERT target");
+                }
+                target.add(text(j));
+                bodyStart = findQueryStart(j + 1);
+                if (bodyStart < 0) {
+                    return Result.notConfident("no query in INSERT");
+                }
+                if ("with".equals(text(bodyStart))) {
+                    if (!topWith.isEmpty() || skipWith(bodyStart) < 0) {
+                        return Result.notConfident("unexpected WITH clause");
+                    }
+                }
+            } else if ("create".equals(head) && i == 0) {
+                int j = i + 1;
+                if ("external".equals(text(j))) {
+                    j++;
+                }
+                if ("view".equals(text(j))) {
+                    // QueryBase does not take the tables of the view query as sources, so leave views to it.
+                    return Result.notConfident("CREATE VIEW");
+                }
+                if (!"table".equals(text(j))) {
+                    // Other CREATE statements do not move data.
+                    return Result.confident(source, target);
+                }
+                j++;
+                if ("if".equals(text(j)) && "not".equals(text(j + 1)) && "exists".equals(text(j + 2))) {
+                    j += 3;
+                }
+                if (types.size() <= j || types.get(j) != IDENT) {
+                    return Result.notConfident("unexpected CREATE target");
+                }
+                String name = text(j);
+                int as = findAs(j + 1);
+                if (as < 0) {
+                    // CREATE TABLE without AS SELECT, or CREATE TABLE LIKE.
+                    return Result.confident(source, target);
+                }
+                target.add(name);
+                bodyStart = as + 1;
+                if ("with".equals(text(bodyStart)) && skipWith(bodyStart) < 0) {
+                    return Result.notConfident("unexpected WITH clause");
+                }
+            } else if (IGNORED_STATEMENTS.contains(head)) {
+                return Result.confident(source, target);
+            } else {
+                return Result.notConfident("unknown statement " + head);
+            }
+
+            // WITH anywhere else is a nested WITH, whose aliases QueryBase keeps as sources.
+            for (int j = 0; j < texts.size(); j++) {
+                if ("with".equals(texts.get(j)) && types.get(j) == IDENT && !topWith.contains(j)) {
+                    return Result.notConfident("nested WITH clause");
+                }
+            }
+
+            String reason = collectSources();
+            if (reason != null) {
+                return Result.notConfident(reason);
+            }
+            source.removeAll(cteNames);
+            return Result.confident(source, target);
+        }
+
+        /**
+         * Record aliases of the WITH clause starting at the position. Quoted aliases are not expected.
+         * @param start Position of WITH.
+         * @return Position after the WITH clause. -1 if not as expected.
+         */
+        private int skipWith(int start) {
+            return skipWith(start, false);
+        }
+
+        /**
+         * Record aliases of the WITH clause starting at the position.
+         * @param start Position of WITH.
+         * @param allowQuoted Accept quoted aliases.
+         * @return Position after the WITH clause. -1 if not as expected.
+         */
+        private int skipWith(int start, boolean allowQuoted) {
+            topWith.add(start);
+            int i = start + 1;
+            while (true) {
+                boolean quoted = allowQuoted && i < types.size() && types.get(i) == QUOTED_IDENT;
+                if (!quoted && !isName(i)) {
+                    return -1;
+                }
+                cteNames.add(text(i));
+                i++;
+                if ("(".equals(text(i))) {
+                    i = skipParen(i);
+                    if (i < 0) {
+                        return -1;
+                    }
+                }
+                if (!"as".equals(text(i)) || !"(".equals(text(i + 1))) {
+                    return -1;
+                }
+                i = skipParen(i + 1);
+                if (i < 0) {
+                    return -1;
+                }
+                if (!",".equals(text(i))) {
+                    return i;
+                }
+                i++;
+            }
+        }
+
+        /**
+         * Get position after the matching closing parenthesis.
+         * @param open Position of the open parenthesis.
+         * @return Position after the closing one. -1 if not closed.
+         */
+        private int skipParen(int open) {
+            int depth = 0;
+            for (int i = open; i < texts.size(); i++) {
+                if (types.get(i) != SYMBOL) {
+                    continue;
+                }
+                if ("(".equals(texts.get(i))) {
+                    depth++;
+                } else if (")".equals(texts.get(i))) {
+                    depth--;
+                    if (depth == 0) {
+                        return i + 1;
+                    }
+                }
+            }
+            return -1;
+        }
+
+        /**
+         * Find the first SELECT / WITH / VALUES outside parentheses.
+         * @param start Position to search from.
+         * @return Position of the query. -1 if not found.
+         */
+        private int findQueryStart(int start) {
+            int depth = 0;
+            for (int i = start; i < texts.size(); i++) {
+                String text = texts.get(i);
+                if ("(".equals(text)) {
+                    depth++;
+                } else if (")".equals(text)) {
+                    depth--;
+                } else if (depth == 0 && types.get(i) == IDENT && QUERY_START.contains(text)) {
+                    return i;
+                }
+            }
+            return -1;
+        }
+
+        /**
+         * Find AS outside parentheses followed by a query, as in CREATE TABLE / VIEW ... AS SELECT.
+         * @param start Position to search from.
+         * @return Position of AS. -1 if not found.
+         */
+        private int findAs(int start) {
+            int depth = 0;
+            for (int i = start; i < texts.size(); i++) {
+                String text = texts.get(i);
+                if ("(".equals(text)) {
+                    depth++;
+                } else if (")".equals(text)) {
+                    depth--;
+                } else if (depth == 0 && "as".equals(text) && QUERY_START.contains(text(i + 1))) {
+                    return i;
+                }
+            }
+            return -1;
+        }
+
+        /**
+         * Collect tables after FROM and JOIN. Parentheses are a query context if they start with a query,
+         * otherwise FROM inside them is part of an expression like EXTRACT(YEAR FROM ts).
+         * @return Reason if not confident. Null if all sources found.
+         */
+        private String collectSources() {
+            List<Boolean> contexts = new ArrayList<>();
+            contexts.add(true);
+            for (int i = 0; i < texts.size(); i++) {
+                String text = texts.get(i);
+                int type = types.get(i);
+                if (type == SYMBOL && "(".equals(text)) {
+                    contexts.add(QUERY_START.contains(text(i + 1)));
+                } else if (type == SYMBOL && ")".equals(text)) {
+                    contexts.remove(contexts.size() - 1);
+                    if (contexts.isEmpty()) {
+                        return "unbalanced parentheses";
+                    }
+                } else if (type == IDENT && ("from".equals(text) || "join".equals(text))
+                        && contexts.get(contexts.size() - 1) && !"distinct".equals(text(i - 1))) {
+                    String reason = collectTableRefs(i + 1, "from".equals(text));
+                    if (reason != null) {
+                        return reason;
+                    }
+                }
+            }
+            if (contexts.size() != 1) {
+                return "unbalanced parentheses";
+            }
+            return null;
+        }
+
+        /**
+         * Collect table references starting at the position.
+         * @param start Position after FROM or JOIN.
+         * @param list True if more tables can follow separated by commas.
+         * @return Reason if not confident. Null if found.
+         */
+        private String collectTableRefs(int start, boolean list) {
+            int i = start;
+            while (true) {
+                if ("[".equals(text(i))) {
+                    // Join hint like [broadcast].
+                    while (i < texts.size() && !"]".equals(texts.get(i))) {
+                        i++;
+                    }
+                    i++;
+                }
+                if ("(".equals(text(i))) {
+                    // Inline view. Its own FROM is collected later, skip it to the tables after it.
+                    if (!QUERY_START.contains(text(i + 1))) {
+                        return "parentheses in table reference";
+                    }
+                    i = skipParen(i);
+                    if (i < 0) {
+                        return "unbalanced parentheses";
+                    }
+                } else if (i < types.size() && types.get(i) == QUOTED_IDENT) {
+                    return "quoted table name";
+                } else if (!isName(i)) {
+                    return "unexpected table reference " + text(i);
+                } else {
+                    source.add(text(i));
+                    i++;
+                }
+                if ("as".equals(text(i))) {
+                    i += 2;
+                } else if (isName(i)) {
+                    i++;
+                }
+                if (!list || !",".equals(text(i))) {
+                    return null;
+                }
+                i++;
+            }
+        }
+    }
+
+    /**
+     * Tables of one statement from this extractor.
+     */
+    public static class Result {
+        private Set<String> source;
+        private Set<String> target;
+        private boolean confident;
+        private String reason;
+
+        private Result(Set<String> source, Set<String> target, boolean confident, String reason) {
+            this.source = source;
+            this.target = target;
+            this.confident = confident;
+            this.reason = reason;
+        }
+
+        private static Result confident(Set<String> source, Set<String> target) {
+            return new Result(source, target, true, null);
+        }
+
+        private static Result notConfident(String reason) {
+            return new Result(Collections.<String>emptySet(), Collections.<String>emptySet(), false, reason);
+        }
+
+        public Set<String> getSource() {
+            return source;
+        }
+
+        public Set<String> getTarget() {
+            return target;
+        }
+
+        /**
+         * Check if the tables can be used without the Impala FE parser.
+         * @return True if confident.
+         */
+        public boolean isConfident() {
+            return confident;
+        }
+
+        /**
+         * Get why the extractor is not confident.
+         * @return Reason. Null if confident.
+         */
+        public String getReason() {
+            return reason;
+        }
+    }
+}
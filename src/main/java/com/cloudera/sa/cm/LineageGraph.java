@@ -0,0 +1,497 @@
+package com.cloudera.sa.cm;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Immutable lineage of all queries, built once after the queries are collected.
+ * Tables are int ids from a TableDictionary. Each table points to the query writing it, and the source
+ * tables of each query are kept in one array in compressed sparse row form:
+ * sources of query q are sources[sourceStart[q]] to sources[sourceStart[q + 1] - 1].
+ * Exclusion of tables and queries is checked once while building, so the search does not hash names again.
+ * Tables the search can go through, whatever the job, are grouped into strongly connected components with
+ * Tarjan's algorithm. Components are numbered so sources of a component have lower numbers, except inside
+ * the component itself.
+ */
+public class LineageGraph {
+    public static final int NO_QUERY = -1;
+    public static final int NO_COMPONENT = -1;
+
+    private TableDictionary dictionary;
+    private ExclusionFilter exclusion;
+
+    // Query writing the table, by table id. NO_QUERY if not written by any query.
+    private int[] producer;
+    private QueryBase[] queries;
+    private int[] sourceStart;
+    private int[] sources;
+
+    // Table is in the exclude list, by table id.
+    private boolean[] excluded;
+    // Table name has an exclude key, by table id.
+    private boolean[] hasExcludeKey;
+    // Id of the table name without database. NOT_FOUND if there is no database in the name.
+    private int[] noDbId;
+    // All sources of the query are excluded, by query index.
+    private boolean[] allSourcesExcluded;
+    // Table is written by a query and not excluded, so the search goes on to its sources unless a job stops.
+    private boolean[] traversable;
+    // Strongly connected component of each traversable table. NO_COMPONENT for other tables.
+    private int[] component;
+    private int[] memberStart;
+    private int[] members;
+    // Tables with the name without database, by table id of that name.
+    private int[] withDbStart;
+    private int[] withDb;
+
+    private LineageGraph() {
+    }
+
+    /**
+     * Build the graph.
+     * @param allQueries Queries by target table.
+     * @param excludeTbls Tables ignore as source table.
+     * @param excludeKeys Keys if found in table should be ignored.
+     * @return Lineage graph.
+     */
+    public static LineageGraph build(Map<String, QueryBase> allQueries, Set<String> excludeTbls, Set<String> excludeKeys) {
+        return build(allQueries, new ExclusionFilter(excludeTbls, excludeKeys));
+    }
+
+    /**
+     * Build the graph.
+     * @param allQueries Queries by target table.
+     * @param exclusion Exclude list and keys of tables.
+     * @return Lineage graph.
+     */
+    public static LineageGraph build(Map<String, QueryBase> allQueries, ExclusionFilter exclusion) {
+        LineageGraph graph = new LineageGraph();
+        TableDictionary dictionary = new TableDictionary();
+        graph.dictionary = dictionary;
+        graph.exclusion = exclusion;
+
+        // One query may write several tables, so queries are indexed by identity.
+        Map<QueryBase, Integer> queryIndex = new IdentityHashMap<>();
+        int[] targets = new int[allQueries.size()];
+        int[] targetQueries = new int[allQueries.size()];
+        int targetCount = 0;
+        int sourceCount = 0;
+        for (Map.Entry<String, QueryBase> entry : allQueries.entrySet()) {
+            Integer index = queryIndex.get(entry.getValue());
+            if (index == null) {
+                index = queryIndex.size();
+                queryIndex.put(entry.getValue(), index);
+                sourceCount += entry.getValue().getSource().size();
+            }
+            targets[targetCount] = dictionary.id(entry.getKey());
+            targetQueries[targetCount] = index;
+            targetCount++;
+        }
+
+        QueryBase[] queries = new QueryBase[queryIndex.size()];
+        for (Map.Entry<QueryBase, Integer> entry : queryIndex.entrySet()) {
+            queries[entry.getValue()] = entry.getKey();
+        }
+        int[] sourceStart = new int[queries.length + 1];
+        int[] sources = new int[sourceCount];
+        int next = 0;
+        for (int q = 0; q < queries.length; q++) {
+            sourceStart[q] = next;
+            for (String source : queries[q].getSource()) {
+                sources[next++] = dictionary.id(source);
+            }
+        }
+        sourceStart[queries.length] = next;
+
+        // Names without database can be matched to task sources when ignoring database names.
+        int tableCount = dictionary.size();
+        int[] noDbId = new int[tableCount];
+        for (int id = 0; id < tableCount; id++) {
+            String name = dictionary.name(id);
+            String[] split = name.split("\\.");
+            noDbId[id] = name.contains(".") && split.length > 1 ? dictionary.id(split[1]) : TableDictionary.NOT_FOUND;
+        }
+
+        int size = dictionary.size();
+        graph.producer = new int[size];
+        Arrays.fill(graph.producer, NO_QUERY);
+        for (int i = 0; i < targetCount; i++) {
+            graph.producer[targets[i]] = targetQueries[i];
+        }
+        graph.queries = queries;
+        graph.sourceStart = sourceStart;
+        graph.sources = sources;
+        graph.noDbId = Arrays.copyOf(noDbId, size);
+        Arrays.fill(graph.noDbId, tableCount, size, TableDictionary.NOT_FOUND);
+
+        graph.excluded = new boolean[size];
+        graph.hasExcludeKey = new boolean[size];
+        for (int id = 0; id < size; id++) {
+            String name = dictionary.name(id);
+            graph.excluded[id] = exclusion.isExcluded(name);
+            graph.hasExcludeKey[id] = exclusion.hasExcludeKey(name);
+        }
+        graph.allSourcesExcluded = new boolean[queries.length];
+        for (int q = 0; q < queries.length; q++) {
+            boolean allExcluded = true;
+            for (int p = sourceStart[q]; p < sourceStart[q + 1] && allExcluded; p++) {
+                allExcluded = graph.excluded[sources[p]] || graph.hasExcludeKey[sources[p]];
+            }
+            graph.allSourcesExcluded[q] = allExcluded;
+        }
+
+        graph.traversable = new boolean[size];
+        for (int id = 0; id < size; id++) {
+            int query = graph.producer[id];
+            graph.traversable[id] = query != NO_QUERY && !graph.excluded[id] && !graph.hasExcludeKey[id]
+                    && !graph.allSourcesExcluded[query];
+        }
+        graph.buildComponents();
+
+        graph.withDbStart = new int[size + 1];
+        for (int id = 0; id < size; id++) {
+            if (graph.noDbId[id] != TableDictionary.NOT_FOUND) {
+                graph.withDbStart[graph.noDbId[id] + 1]++;
+            }
+        }
+        for (int id = 0; id < size; id++) {
+            graph.withDbStart[id + 1] += graph.withDbStart[id];
+        }
+        graph.withDb = new int[graph.withDbStart[size]];
+        int[] fill = Arrays.copyOf(graph.withDbStart, size);
+        for (int id = 0; id < size; id++) {
+            if (graph.noDbId[id] != TableDictionary.NOT_FOUND) {
+                graph.withDb[fill[graph.noDbId[id]]++] = id;
+            }
+        }
+        return graph;
+    }
+
+    /**
+     * Group traversable tables into strongly connected components with Tarjan's algorithm.
+     * Uses its own stack instead of recursion, as staging chains can be deep.
+     */
+    private void buildComponents() {
+        int size = producer.length;
+        component = new int[size];
+        Arrays.fill(component, NO_COMPONENT);
+        int[] index = new int[size];
+        Arrays.fill(index, -1);
+        int[] low = new int[size];
+        boolean[] onStack = new boolean[size];
+        int[] sccStack = new int[size];
+        int sccSize = 0;
+        int[] callNode = new int[size];
+        int[] callPos = new int[size];
+        int callSize = 0;
+        int counter = 0;
+        int components = 0;
+
+        for (int root = 0; root < size; root++) {
+            if (!traversable[root] || index[root] != -1) {
+                continue;
+            }
+            index[root] = counter;
+            low[root] = counter++;
+            sccStack[sccSize++] = root;
+            onStack[root] = true;
+            callNode[callSize] = root;
+            callPos[callSize++] = sourceStart[producer[root]];
+
+            while (callSize > 0) {
+                int v = callNode[callSize - 1];
+                int pos = callPos[callSize - 1];
+                if (pos < sourceStart[producer[v] + 1]) {
+                    callPos[callSize - 1]++;
+                    int w = sources[pos];
+                    if (!traversable[w]) {
+                        continue;
+                    }
+                    if (index[w] == -1) {
+                        index[w] = counter;
+                        low[w] = counter++;
+                        sccStack[sccSize++] = w;
+                        onStack[w] = true;
+                        callNode[callSize] = w;
+                        callPos[callSize++] = sourceStart[producer[w]];
+                    } else if (onStack[w]) {
+                        low[v] = Math.min(low[v], index[w]);
+                    }
+                    continue;
+                }
+
+                callSize--;
+                if (callSize > 0) {
+                    int parent = callNode[callSize - 1];
+                    low[parent] = Math.min(low[parent], low[v]);
+                }
+                if (low[v] == index[v]) {
+                    int w;
+                    do {
+                        w = sccStack[--sccSize];
+                        onStack[w] = false;
+                        component[w] = components;
+                    } while (w != v);
+                    components++;
+                }
+            }
+        }
+
+        memberStart = new int[components + 1];
+        for (int id = 0; id < size; id++) {
+            if (component[id] != NO_COMPONENT) {
+                memberStart[component[id] + 1]++;
+            }
+        }
+        for (int c = 0; c < components; c++) {
+            memberStart[c + 1] += memberStart[c];
+        }
+        members = new int[memberStart[components]];
+        int[] fill = Arrays.copyOf(memberStart, components);
+        for (int id = 0; id < size; id++) {
+            if (component[id] != NO_COMPONENT) {
+                members[fill[component[id]]++] = id;
+            }
+        }
+    }
+
+    /**
+     * Get id of the table.
+     * @param name Table name.
+     * @return Table id. NOT_FOUND if the table is not in the graph.
+     */
+    public int lookup(String name) {
+        return dictionary.lookup(name);
+    }
+
+    /**
+     * Get ids of the tables in the graph, sorted.
+     * @param names Table names.
+     * @return Sorted ids. Tables not in the graph are left out.
+     */
+    public int[] lookupAll(Collection<String> names) {
+        int[] ids = new int[names.size()];
+        int count = 0;
+        for (String name : names) {
+            int id = dictionary.lookup(name);
+            if (id != TableDictionary.NOT_FOUND) {
+                ids[count++] = id;
+            }
+        }
+        ids = Arrays.copyOf(ids, count);
+        Arrays.sort(ids);
+        return ids;
+    }
+
+    /**
+     * Get name of the table.
+     * @param table Table id.
+     * @return Table name.
+     */
+    public String name(int table) {
+        return dictionary.name(table);
+    }
+
+    /**
+     * Get number of tables.
+     * @return Number of tables.
+     */
+    public int tableCount() {
+        return producer.length;
+    }
+
+    /**
+     * Get number of distinct queries.
+     * @return Number of queries.
+     */
+    public int queryCount() {
+        return queries.length;
+    }
+
+    /**
+     * Get query writing the table.
+     * @param table Table id.
+     * @return Query index. NO_QUERY if no query writes the table.
+     */
+    public int producer(int table) {
+        return producer[table];
+    }
+
+    /**
+     * Get the query.
+     * @param query Query index.
+     * @return Query.
+     */
+    public QueryBase query(int query) {
+        return queries[query];
+    }
+
+    /**
+     * Get first position of the sources of the query, to read with source(int).
+     * @param query Query index.
+     * @return Start position.
+     */
+    public int sourceStart(int query) {
+        return sourceStart[query];
+    }
+
+    /**
+     * Get position after the last source of the query.
+     * @param query Query index.
+     * @return End position.
+     */
+    public int sourceEnd(int query) {
+        return sourceStart[query + 1];
+    }
+
+    /**
+     * Get source table id at the position.
+     * @param position Position between sourceStart and sourceEnd of a query.
+     * @return Source table id.
+     */
+    public int source(int position) {
+        return sources[position];
+    }
+
+    /**
+     * Check if the table is in the exclude list.
+     * @param table Table id.
+     * @return True if excluded.
+     */
+    public boolean isExcluded(int table) {
+        return excluded[table];
+    }
+
+    /**
+     * Check if the table name has an exclude key.
+     * @param table Table id.
+     * @return True if it has an exclude key.
+     */
+    public boolean hasExcludeKey(int table) {
+        return hasExcludeKey[table];
+    }
+
+    /**
+     * Check if the table is in the exclude list, for tables not in the graph.
+     * @param name Table name.
+     * @return True if excluded.
+     */
+    public boolean isExcluded(String name) {
+        return exclusion.isExcluded(name);
+    }
+
+    /**
+     * Check if the table name has an exclude key, for tables not in the graph.
+     * @param name Table name.
+     * @return True if it has an exclude key.
+     */
+    public boolean hasExcludeKey(String name) {
+        return exclusion.hasExcludeKey(name);
+    }
+
+    /**
+     * Get id of the table name without database.
+     * @param table Table id.
+     * @return Table id without database. NOT_FOUND if there is no database in the name.
+     */
+    public int noDbId(int table) {
+        return noDbId[table];
+    }
+
+    /**
+     * Check if the search can go through the table to the sources of its query.
+     * True if the table is written by a query, is not excluded and the query has a source not excluded.
+     * Job source tables still stop the search.
+     * @param table Table id.
+     * @return True if traversable.
+     */
+    public boolean isTraversable(int table) {
+        return traversable[table];
+    }
+
+    /**
+     * Get strongly connected component of the table.
+     * @param table Table id.
+     * @return Component. NO_COMPONENT if the table is not traversable.
+     */
+    public int component(int table) {
+        return component[table];
+    }
+
+    /**
+     * Get number of strongly connected components.
+     * @return Number of components.
+     */
+    public int componentCount() {
+        return memberStart.length - 1;
+    }
+
+    /**
+     * Get first position of the tables in the component, to read with member(int).
+     * @param component Component.
+     * @return Start position.
+     */
+    public int memberStart(int component) {
+        return memberStart[component];
+    }
+
+    /**
+     * Get position after the last table in the component.
+     * @param component Component.
+     * @return End position.
+     */
+    public int memberEnd(int component) {
+        return memberStart[component + 1];
+    }
+
+    /**
+     * Get table id at the position.
+     * @param position Position between memberStart and memberEnd of a component.
+     * @return Table id.
+     */
+    public int member(int position) {
+        return members[position];
+    }
+
+    /**
+     * Get ids of the tables a job stops at, from ids of the job source tables.
+     * When ignoring database names, a table with database stops the search if its name without database is
+     * a source table.
+     * @param srcIds Sorted ids of job source tables.
+     * @param ignoreSrcDb Ignore database names.
+     * @return Sorted ids of tables to stop at.
+     */
+    public int[] stopIds(int[] srcIds, boolean ignoreSrcDb) {
+        if (!ignoreSrcDb) {
+            return srcIds;
+        }
+        int count = 0;
+        for (int src : srcIds) {
+            count += (noDbId[src] == TableDictionary.NOT_FOUND ? 1 : 0) + withDbStart[src + 1] - withDbStart[src];
+        }
+        int[] ids = new int[count];
+        count = 0;
+        for (int src : srcIds) {
+            if (noDbId[src] == TableDictionary.NOT_FOUND) {
+                ids[count++] = src;
+            }
+            for (int i = withDbStart[src]; i < withDbStart[src + 1]; i++) {
+                ids[count++] = withDb[i];
+            }
+        }
+        Arrays.sort(ids);
+        return ids;
+    }
+
+    /**
+     * Check if all sources of the query are excluded.
+     * @param query Query index.
+     * @return True if all sources are excluded.
+     */
+    public boolean isAllSourcesExcluded(int query) {
+        return allSourcesExcluded[query];
+    }
+}
@@ -0,0 +1,283 @@
+package com.cloudera.sa.cm;
+
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Metrics of all queries in primitive columns indexed by row, instead of one TaskMetrics per query.
+ * Users, pools and services are kept as int ids, and file formats as a bit mask of format ids.
+ * A row takes 60 bytes: 3 doubles, 3 longs and 3 ints. A TaskMetrics of one query takes about 900 bytes
+ * with its four HashSets of one entry each, before counting the strings.
+ * Rows with more than one user, pool or service, or with formats past the mask, keep those sets in a
+ * TaskMetrics on the side.
+ * Appends are synchronized. Merges are meant to run after all rows are added.
+ */
+public class MetricsStore {
+    public static final int NO_ID = -1;
+
+    // Number of file formats that fit in the mask.
+    private static final int MASK_FORMATS = Long.SIZE;
+
+    private double[] memoryGb;
+    private double[] duration;
+    private double[] admissionWait;
+    private long[] inputBytes;
+    private long[] outputBytes;
+    private long[] formatMask;
+    private int[] user;
+    private int[] pool;
+    private int[] service;
+    private int count;
+
+    private TableDictionary users;
+    private TableDictionary pools;
+    private TableDictionary services;
+    private TableDictionary formats;
+    // Sets which do not fit in the columns, by row.
+    private Map<Integer, TaskMetrics> overflow;
+
+    public MetricsStore() {
+        int capacity = 1024;
+        memoryGb = new double[capacity];
+        duration = new double[capacity];
+        admissionWait = new double[capacity];
+        inputBytes = new long[capacity];
+        outputBytes = new long[capacity];
+        formatMask = new long[capacity];
+        user = new int[capacity];
+        pool = new int[capacity];
+        service = new int[capacity];
+        users = new TableDictionary();
+        pools = new TableDictionary();
+        services = new TableDictionary();
+        formats = new TableDictionary();
+        overflow = new HashMap<>();
+    }
+
+    /**
+     * Add metrics of one query.
+     * @param metrics Metrics of the query.
+     * @return Row of the query.
+     */
+    public synchronized int add(TaskMetrics metrics) {
+        int row = count;
+        if (row == memoryGb.length) {
+            grow(row * 2);
+        }
+        memoryGb[row] = metrics.getMaxMemoryGb();
+        duration[row] = metrics.getDuration();
+        admissionWait[row] = metrics.getAdmissionDurtaion();
+        inputBytes[row] = metrics.getTotalInputBuytes();
+        outputBytes[row] = metrics.getTotalOutputBytes();
+
+        TaskMetrics extra = new TaskMetrics();
+        user[row] = encode(metrics.getUsers(), users);
+        if (user[row] == NO_ID && !metrics.getUsers().isEmpty()) {
+            extra.getUsers().addAll(metrics.getUsers());
+        }
+        pool[row] = encode(metrics.getQueues(), pools);
+        if (pool[row] == NO_ID && !metrics.getQueues().isEmpty()) {
+            extra.getQueues().addAll(metrics.getQueues());
+        }
+        service[row] = encode(metrics.getServices(), services);
+        if (service[row] == NO_ID && !metrics.getServices().isEmpty()) {
+            extra.getServices().addAll(metrics.getServices());
+        }
+        long mask = 0;
+        for (String format : metrics.getFileFormats()) {
+            int id = formats.id(format);
+            if (id < MASK_FORMATS) {
+                mask |= 1L << id;
+            } else {
+                extra.addInputFormat(format);
+            }
+        }
+        formatMask[row] = mask;
+        if (!extra.getUsers().isEmpty() || !extra.getQueues().isEmpty() || !extra.getServices().isEmpty()
+                || !extra.getFileFormats().isEmpty()) {
+            overflow.put(row, extra);
+        }
+
+        count = row + 1;
+        return row;
+    }
+
+    /**
+     * Get id of the only value in the set.
+     * @return Id, or NO_ID if the set does not have exactly one value.
+     */
+    private static int encode(Set<String> values, TableDictionary dictionary) {
+        return values.size() == 1 ? dictionary.id(values.iterator().next()) : NO_ID;
+    }
+
+    private void grow(int capacity) {
+        memoryGb = Arrays.copyOf(memoryGb, capacity);
+        duration = Arrays.copyOf(duration, capacity);
+        admissionWait = Arrays.copyOf(admissionWait, capacity);
+        inputBytes = Arrays.copyOf(inputBytes, capacity);
+        outputBytes = Arrays.copyOf(outputBytes, capacity);
+        formatMask = Arrays.copyOf(formatMask, capacity);
+        user = Arrays.copyOf(user, capacity);
+        pool = Arrays.copyOf(pool, capacity);
+        service = Arrays.copyOf(service, capacity);
+    }
+
+    /**
+     * Get max memory of the query.
+     * @param row Row of the query.
+     * @return Memory in GB.
+     */
+    public synchronized double getMemoryGb(int row) {
+        return memoryGb[row];
+    }
+
+    /**
+     * Get duration of the query.
+     * @param row Row of the query.
+     * @return Duration in seconds.
+     */
+    public synchronized double getDuration(int row) {
+        return duration[row];
+    }
+
+    /**
+     * Get metrics of one query as a TaskMetrics.
+     * @param row Row of the query.
+     * @return Metrics of the query.
+     */
+    public TaskMetrics get(int row) {
+        TaskMetrics metrics = new TaskMetrics();
+        merge(new int[]{row}, 1, metrics);
+        return metrics;
+    }
+
+    /**
+     * Merge metrics of the queries into the task metrics.
+     * Each column is read in its own loop, and sets are decoded once for all rows.
+     * @param rows Rows of the queries. A row may be given more than once.
+     * @param rowCount Number of rows to read from the array.
+     * @param into Task metrics to merge into.
+     */
+    public void merge(int[] rows, int rowCount, TaskMetrics into) {
+        double[] memoryGb;
+        double[] duration;
+        double[] admissionWait;
+        long[] inputBytes;
+        long[] outputBytes;
+        long[] formatMask;
+        int[] user;
+        int[] pool;
+        int[] service;
+        synchronized (this) {
+            memoryGb = this.memoryGb;
+            duration = this.duration;
+            admissionWait = this.admissionWait;
+            inputBytes = this.inputBytes;
+            outputBytes = this.outputBytes;
+            formatMask = this.formatMask;
+            user = this.user;
+            pool = this.pool;
+            service = this.service;
+        }
+
+        double maxMemoryGb = 0;
+        for (int i = 0; i < rowCount; i++) {
+            maxMemoryGb = Math.max(maxMemoryGb, memoryGb[rows[i]]);
+        }
+        double totalDuration = 0;
+        double maxDuration = 0;
+        for (int i = 0; i < rowCount; i++) {
+            double value = duration[rows[i]];
+            totalDuration += value;
+            maxDuration = Math.max(maxDuration, value);
+        }
+        double totalWait = 0;
+        double maxWait = 0;
+        for (int i = 0; i < rowCount; i++) {
+            double value = admissionWait[rows[i]];
+            totalWait += value;
+            maxWait = Math.max(maxWait, value);
+        }
+        long totalInput = 0;
+        long maxInput = 0;
+        for (int i = 0; i < rowCount; i++) {
+            long value = inputBytes[rows[i]];
+            totalInput += value;
+            maxInput = Math.max(maxInput, value);
+        }
+        long totalOutput = 0;
+        long maxOutput = 0;
+        for (int i = 0; i < rowCount; i++) {
+            long value = outputBytes[rows[i]];
+            totalOutput += value;
+            maxOutput = Math.max(maxOutput, value);
+        }
+        into.updateTotals(maxMemoryGb, totalDuration, maxDuration, totalWait, maxWait, totalInput, maxInput,
+                totalOutput, maxOutput);
+
+        long mask = 0;
+        BitSet userIds = new BitSet();
+        BitSet poolIds = new BitSet();
+        BitSet serviceIds = new BitSet();
+        for (int i = 0; i < rowCount; i++) {
+            int row = rows[i];
+            mask |= formatMask[row];
+            if (user[row] != NO_ID) {
+                userIds.set(user[row]);
+            }
+            if (pool[row] != NO_ID) {
+                poolIds.set(pool[row]);
+            }
+            if (service[row] != NO_ID) {
+                serviceIds.set(service[row]);
+            }
+        }
+
+        synchronized (this) {
+            for (int id = userIds.nextSetBit(0); id >= 0; id = userIds.nextSetBit(id + 1)) {
+                into.addUser(users.name(id));
+            }
+            for (int id = poolIds.nextSetBit(0); id >= 0; id = poolIds.nextSetBit(id + 1)) {
+                into.addQueue(pools.name(id));
+            }
+            for (int id = serviceIds.nextSetBit(0); id >= 0; id = serviceIds.nextSetBit(id + 1)) {
+                into.addService(services.name(id));
+            }
+            for (int id = 0; id < MASK_FORMATS; id++) {
+                if ((mask & (1L << id)) != 0) {
+                    into.addInputFormat(formats.name(id));
+                }
+            }
+            if (!overflow.isEmpty()) {
+                for (int i = 0; i < rowCount; i++) {
+                    TaskMetrics extra = overflow.get(rows[i]);
+                    if (extra != null) {
+                        into.updateMetrics(extra);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Get number of rows.
+     * @return Number of rows.
+     */
+    public synchronized int size() {
+        return count;
+    }
+
+    /**
+     * Report number of rows and memory used by the columns.
+     * @return Report string.
+     */
+    public synchronized String report() {
+        long columnBytes = (long) memoryGb.length * (3 * 8 + 3 * 8 + 3 * 4);
+        return String.format("Metrics store: %d queries, %.1f MB in columns, %d users, %d pools, %d services, "
+                        + "%d file formats, %d queries with sets on the side", count, columnBytes / 1048576.0,
+                users.size(), pools.size(), services.size(), formats.size(), overflow.size());
+    }
+}
@@ -0,0 +1,100 @@
+package com.cloudera.sa.cm;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Write lines finished in any order in the order of their sequence numbers.
+ * A line is written as soon as all lines before it are written, otherwise it waits in memory.
+ * Every sequence number from 0 must be written once, with a null line for nothing to write. Thread safe.
+ */
+public class OrderedLineWriter {
+    private BufferedWriter writer;
+    private Map<Long, String> waiting;
+    // Sequence numbers with nothing to write, waiting for lines before them.
+    private Set<Long> skipped;
+    // Next sequence number to write.
+    private long nextSeq;
+    private int maxWaiting;
+
+    /**
+     * @param writer Writer of the lines.
+     */
+    public OrderedLineWriter(BufferedWriter writer) {
+        this.writer = writer;
+        this.waiting = new HashMap<>();
+        this.skipped = new HashSet<>();
+    }
+
+    /**
+     * Write the line of the sequence number, and the waiting lines after it.
+     * @param seq Sequence number.
+     * @param line Line without line separator. Null to write nothing for this number.
+     * @throws IOException
+     */
+    public synchronized void write(long seq, String line) throws IOException {
+        if (seq < nextSeq || waiting.containsKey(seq) || skipped.contains(seq)) {
+            throw new IllegalStateException("Line " + seq + " is written twice");
+        }
+        if (seq != nextSeq) {
+            if (line == null) {
+                skipped.add(seq);
+            } else {
+                waiting.put(seq, line);
+            }
+            maxWaiting = Math.max(maxWaiting, waiting.size() + skipped.size());
+            return;
+        }
+        writeLine(line);
+        while (true) {
+            if (skipped.remove(nextSeq)) {
+                nextSeq++;
+                continue;
+            }
+            String next = waiting.remove(nextSeq);
+            if (next == null) {
+                break;
+            }
+            writeLine(next);
+        }
+    }
+
+    private void writeLine(String line) throws IOException {
+        if (line != null) {
+            writer.write(line);
+            writer.newLine();
+        }
+        nextSeq++;
+    }
+
+    /**
+     * Get number of sequence numbers written so far.
+     * @return Number of lines written or skipped.
+     */
+    public synchronized long getWritten() {
+        return nextSeq;
+    }
+
+    /**
+     * Get max number of lines waiting for lines before them.
+     * @return Max number of waiting lines.
+     */
+    public synchronized int getMaxWaiting() {
+        return maxWaiting;
+    }
+
+    /**
+     * Flush the writer. All lines must be written before.
+     * @throws IOException
+     */
+    public synchronized void flush() throws IOException {
+        if (!waiting.isEmpty() || !skipped.isEmpty()) {
+            throw new IllegalStateException((waiting.size() + skipped.size()) + " lines wait for line " + nextSeq);
+        }
+        writer.flush();
+    }
+}
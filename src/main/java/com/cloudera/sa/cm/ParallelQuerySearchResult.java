@@ -0,0 +1,162 @@
+package com.cloudera.sa.cm;
+
+import com.cloudera.api.swagger.client.ApiException;
+import com.cloudera.api.swagger.model.ApiImpalaQuery;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Split the search time range into several sub ranges and search them from CM concurrently.
+ * Each sub range is searched by its own QuerySearchResult, so the scan limit handling is kept for each of them.
+ * Queries from all sub ranges are merged into one stream and de-duplicated by query id.
+ */
+public class ParallelQuerySearchResult implements QueryStream {
+    private static final Logger LOGGER = LoggerFactory.getLogger(ParallelQuerySearchResult.class);
+
+    // Number of queries buffered for each worker.
+    private static final int QUEUE_SIZE_PER_WORKER = 1000;
+    // Marker put into the queue when one sub range is finished.
+    private static final ApiImpalaQuery END_OF_SLICE = new ApiImpalaQuery();
+
+    private ImpalaQuerySearch search;
+    private String clusterName;
+    private String serviceName;
+    private String filter;
+    private int slices;
+
+    private ExecutorService executor;
+    private BlockingQueue<ApiImpalaQuery> queue;
+    private Set<String> seenIds;
+    private int finishedSlices;
+    private AtomicInteger failedSlices;
+
+    public ParallelQuerySearchResult(ImpalaQuerySearch search, String clusterName, String serviceName, String filter,
+                                     String from, String to, int slices, int threads) {
+        this.search = search;
+        this.clusterName = clusterName;
+        this.serviceName = serviceName;
+        this.filter = filter;
+        this.slices = slices;
+
+        this.queue = new ArrayBlockingQueue<>(QUEUE_SIZE_PER_WORKER * threads);
+        this.seenIds = new HashSet<>();
+        this.finishedSlices = 0;
+        this.failedSlices = new AtomicInteger(0);
+        this.executor = Executors.newFixedThreadPool(threads);
+
+        long start = QueryAnalyzeUtil.parseIsoTime(from);
+        long end = QueryAnalyzeUtil.parseIsoTime(to);
+        long step = Math.max(1, (end - start + slices - 1) / slices);
+
+        // Submit the latest range first as CM returns the latest queries first.
+        int submitted = 0;
+        for (long sliceEnd = end; submitted < slices && sliceEnd > start; sliceEnd -= step) {
+            long sliceStart = Math.max(start, sliceEnd - step);
+            submitSlice(QueryAnalyzeUtil.formatIsoTime(sliceStart), QueryAnalyzeUtil.formatIsoTime(sliceEnd));
+            submitted += 1;
+        }
+        // Time range may be too short to have all the slices.
+        this.slices = submitted;
+        executor.shutdown();
+    }
+
+    /**
+     * Search one sub range in the worker pool.
+     * @param sliceFrom Start time of the sub range.
+     * @param sliceTo End time of the sub range.
+     */
+    private void submitSlice(final String sliceFrom, final String sliceTo) {
+        executor.submit(new Runnable() {
+            @Override
+            public void run() {
+                LOGGER.info("Start searching slice from=" + sliceFrom + ", to=" + sliceTo);
+                int count = 0;
+                try {
+                    QuerySearchResult result = new QuerySearchResult(search, clusterName, serviceName, filter,
+                            sliceFrom, sliceTo, search.getPrefetchPages());
+                    try {
+                        ApiImpalaQuery query;
+                        while ((query = result.nextQuery()) != null) {
+                            queue.put(query);
+                            count += 1;
+                        }
+                        if (!result.isComplete()) {
+                            failedSlices.incrementAndGet();
+                        }
+                    } finally {
+                        result.close();
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                } catch (Throwable e) {
+                    // Any failure only fails this slice. The end of slice below is still posted, so the
+                    // consumer does not wait for it forever.
+                    LOGGER.error("Failed to search slice from=" + sliceFrom + ", to=" + sliceTo, e);
+                    failedSlices.incrementAndGet();
+                } finally {
+                    LOGGER.info("Finished slice from=" + sliceFrom + ", to=" + sliceTo + ", count=" + count);
+                    try {
+                        queue.put(END_OF_SLICE);
+                    } catch (InterruptedException e) {
+                        // Closed by the consumer.
+                        Thread.currentThread().interrupt();
+                    }
+                }
+            }
+        });
+    }
+
+    /**
+     * Get next query from any of the sub ranges.
+     * @return Next query not seen before. Null if all sub ranges finished.
+     * @throws ApiException
+     */
+    public ApiImpalaQuery nextQuery() throws ApiException {
+        while (finishedSlices < slices) {
+            ApiImpalaQuery query;
+            try {
+                query = queue.take();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new ApiException(e);
+            }
+
+            if (query == END_OF_SLICE) {
+                finishedSlices += 1;
+                if (finishedSlices == slices && failedSlices.get() > 0) {
+                    LOGGER.warn(failedSlices.get() + " of " + slices + " slices failed. The search result is not complete.");
+                }
+                continue;
+            }
+
+            // Sub ranges share their boundary so the same query may come twice.
+            if (query.getQueryId() == null || seenIds.add(query.getQueryId())) {
+                return query;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Check if all sub ranges are searched without errors.
+     * @return True if no result is lost because of errors.
+     */
+    public boolean isComplete() {
+        return failedSlices.get() == 0;
+    }
+
+    /**
+     * Stop all workers.
+     */
+    public void close() {
+        executor.shutdownNow();
+    }
+}
@@ -0,0 +1,167 @@
+package com.cloudera.sa.cm;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Search tasks on a work stealing pool of threads and write their lines in the order of the tasks.
+ * Tasks are submitted most expensive first, by an estimate of the number of tables upstream of their
+ * targets, so a long task does not start last and keep the other threads waiting for it at the end.
+ * Each thread keeps its own TraversalContext. The lineage graph, closure cache and stores are shared, and
+ * are not changed by the search except the closure cache, which is thread safe.
+ * Lines finished out of order wait in the OrderedLineWriter until the lines before them are written.
+ */
+public class ParallelTaskEvaluator {
+    private static final Logger LOGGER = LoggerFactory.getLogger(ParallelTaskEvaluator.class);
+
+    /**
+     * Search one task and form its line. Called from the worker threads.
+     */
+    public interface TaskSearch {
+        String search(TaskInfoCollector task, TraversalContext context) throws Exception;
+    }
+
+    private LineageGraph graph;
+    private TaskSearch search;
+    private int threads;
+    // Estimated number of tables reached from each component. Null until first needed.
+    private long[] componentCosts;
+
+    /**
+     * @param graph Lineage graph the tasks are searched on.
+     * @param search Search of one task.
+     * @param threads Number of threads.
+     */
+    public ParallelTaskEvaluator(LineageGraph graph, TaskSearch search, int threads) {
+        this.graph = graph;
+        this.search = search;
+        this.threads = threads;
+    }
+
+    /**
+     * Search all tasks and write their lines in the order of the list.
+     * Tasks are dropped from the list once searched.
+     * @param tasks Tasks to search. Line of task i is written in sequence number i.
+     * @param writer Writer of the lines.
+     * @throws Exception First failure of a task search.
+     */
+    public void evaluate(List<TaskInfoCollector> tasks, final OrderedLineWriter writer) throws Exception {
+        final TaskInfoCollector[] pending = tasks.toArray(new TaskInfoCollector[tasks.size()]);
+        tasks.clear();
+        Integer[] order = order(pending);
+
+        final ThreadLocal<TraversalContext> contexts = new ThreadLocal<TraversalContext>() {
+            @Override
+            protected TraversalContext initialValue() {
+                return new TraversalContext(graph);
+            }
+        };
+        ExecutorService executor = Executors.newWorkStealingPool(threads);
+        try {
+            List<Future<Void>> futures = new ArrayList<>(pending.length);
+            for (final int index : order) {
+                futures.add(executor.submit(new Callable<Void>() {
+                    @Override
+                    public Void call() throws Exception {
+                        TaskInfoCollector task = pending[index];
+                        pending[index] = null;
+                        writer.write(index, search.search(task, contexts.get()));
+                        return null;
+                    }
+                }));
+            }
+            for (Future<Void> future : futures) {
+                try {
+                    future.get();
+                } catch (ExecutionException e) {
+                    throw e.getCause() instanceof Exception ? (Exception) e.getCause() : e;
+                }
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+        LOGGER.info("Searched " + pending.length + " tasks on " + threads + " threads. At most "
+                + writer.getMaxWaiting() + " lines waited for lines before them.");
+    }
+
+    /**
+     * Order the tasks most expensive first. Tasks of the same cost stay in input order.
+     * @param tasks Tasks.
+     * @return Indexes of the tasks.
+     */
+    private Integer[] order(TaskInfoCollector[] tasks) {
+        final long[] costs = new long[tasks.length];
+        Integer[] order = new Integer[tasks.length];
+        for (int i = 0; i < tasks.length; i++) {
+            costs[i] = estimate(tasks[i]);
+            order[i] = i;
+        }
+        Arrays.sort(order, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer a, Integer b) {
+                int cost = Long.compare(costs[b], costs[a]);
+                return cost != 0 ? cost : Integer.compare(a, b);
+            }
+        });
+        return order;
+    }
+
+    /**
+     * Estimate the number of tables the search of the task goes through.
+     * @param task Task.
+     * @return Estimated cost.
+     */
+    private long estimate(TaskInfoCollector task) {
+        long[] costs = getComponentCosts();
+        long cost = 0;
+        for (String target : task.getTargetTbls()) {
+            int id = graph.lookup(target);
+            if (id == TableDictionary.NOT_FOUND || !graph.isTraversable(id)) {
+                cost += 1;
+            } else {
+                cost += costs[graph.component(id)];
+            }
+        }
+        return cost;
+    }
+
+    /**
+     * Estimate the number of tables reached from each component, sources first as they have lower numbers.
+     * Tables shared by several paths are counted once per path, so the estimate is capped at the number
+     * of tables.
+     * @return Estimated cost of each component.
+     */
+    private long[] getComponentCosts() {
+        if (componentCosts != null) {
+            return componentCosts;
+        }
+        long[] costs = new long[graph.componentCount()];
+        for (int c = 0; c < costs.length; c++) {
+            long cost = graph.memberEnd(c) - graph.memberStart(c);
+            for (int m = graph.memberStart(c); m < graph.memberEnd(c); m++) {
+                int query = graph.producer(graph.member(m));
+                for (int p = graph.sourceStart(query); p < graph.sourceEnd(query); p++) {
+                    int source = graph.component(graph.source(p));
+                    if (source == LineageGraph.NO_COMPONENT) {
+                        cost += 1;
+                    } else if (source != c) {
+                        cost += costs[source];
+                    }
+                }
+            }
+            costs[c] = Math.min(cost, graph.tableCount());
+        }
+        componentCosts = costs;
+        return costs;
+    }
+}
@@ -0,0 +1,194 @@
+package com.cloudera.sa.cm;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Give each statement parse a time budget. The parse runs on a watchdog thread and the caller stops waiting
+ * once the budget is used up, taking the fall back result instead.
+ * The Impala FE parser does not check for interrupts, so a parse over budget keeps running on its daemon
+ * thread until it ends, but it no longer holds up the run. Parses still running over budget are counted, and
+ * once there are as many as the cap, statements take the fall back result without a parse until some of
+ * them end. This bounds the threads to the callers plus the cap.
+ * The slowest statements are kept for a report with their size and parse time.
+ */
+public class ParseWatchdog {
+    private static final Logger LOGGER = LoggerFactory.getLogger(ParseWatchdog.class);
+
+    // Max number of statements in the slow statement report.
+    private static final int MAX_REPORTED = 20;
+    // Characters of each statement shown in the report.
+    private static final int PREVIEW_CHARS = 200;
+
+    private static final int RUNNING = 0;
+    private static final int DONE = 1;
+    private static final int ABANDONED = 2;
+
+    private long budgetMillis;
+    private long slowMillis;
+    private ExecutorService executor;
+
+    private AtomicInteger parsed;
+    private AtomicInteger timeouts;
+    // Parses still running after their budget was used up.
+    private AtomicInteger stuck;
+    private int maxStuck;
+    // Statements given the fall back result without a parse because of too many stuck parses.
+    private AtomicInteger skipped;
+    // Slowest statements with the fastest on top.
+    private PriorityQueue<SlowStatement> slowest;
+
+    /**
+     * @param budgetMillis Max time to wait for one parse.
+     * @param maxStuck Max number of parses left running over budget before parses are skipped.
+     */
+    public ParseWatchdog(long budgetMillis, int maxStuck) {
+        this.budgetMillis = budgetMillis;
+        this.maxStuck = maxStuck;
+        this.slowMillis = Math.max(1, budgetMillis / 10);
+        this.executor = Executors.newCachedThreadPool(new ThreadFactory() {
+            private AtomicInteger count = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "parse-watchdog-" + count.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        this.parsed = new AtomicInteger();
+        this.timeouts = new AtomicInteger();
+        this.stuck = new AtomicInteger();
+        this.skipped = new AtomicInteger();
+        this.slowest = new PriorityQueue<>(MAX_REPORTED + 1, new Comparator<SlowStatement>() {
+            @Override
+            public int compare(SlowStatement s1, SlowStatement s2) {
+                return Long.compare(s1.elapsedMillis, s2.elapsedMillis);
+            }
+        });
+    }
+
+    /**
+     * Parse the statement within the budget. Take the fall back result right away if too many parses are
+     * still running over budget.
+     * @param statement SQL statement, for the report.
+     * @param parse Parse to run.
+     * @param fallback Called instead if the parse is over budget.
+     * @return Result of the parse, or of the fall back if over budget or skipped.
+     * @throws Exception Error from the parse or the fall back.
+     */
+    public QueryBase parse(String statement, final Callable<QueryBase> parse, Callable<QueryBase> fallback)
+            throws Exception {
+        if (stuck.get() >= maxStuck) {
+            skipped.incrementAndGet();
+            return fallback.call();
+        }
+        long start = System.currentTimeMillis();
+        // RUNNING until the parse ends or the caller gives up on it, whichever comes first.
+        final AtomicInteger state = new AtomicInteger(RUNNING);
+        Future<QueryBase> future = executor.submit(new Callable<QueryBase>() {
+            @Override
+            public QueryBase call() throws Exception {
+                try {
+                    return parse.call();
+                } finally {
+                    if (!state.compareAndSet(RUNNING, DONE)) {
+                        stuck.decrementAndGet();
+                    }
+                }
+            }
+        });
+        try {
+            QueryBase node = future.get(budgetMillis, TimeUnit.MILLISECONDS);
+            parsed.incrementAndGet();
+            record(statement, System.currentTimeMillis() - start, false);
+            return node;
+        } catch (ExecutionException e) {
+            throw e.getCause() instanceof Exception ? (Exception) e.getCause() : e;
+        } catch (TimeoutException e) {
+            future.cancel(true);
+            if (state.compareAndSet(RUNNING, ABANDONED)) {
+                stuck.incrementAndGet();
+            }
+            timeouts.incrementAndGet();
+            record(statement, System.currentTimeMillis() - start, true);
+            LOGGER.warn("Parse over " + budgetMillis + " ms budget for statement of " + statement.length()
+                    + " chars: " + preview(statement));
+            return fallback.call();
+        }
+    }
+
+    private synchronized void record(String statement, long elapsedMillis, boolean timedOut) {
+        if (elapsedMillis < slowMillis && !timedOut) {
+            return;
+        }
+        slowest.add(new SlowStatement(preview(statement), statement.length(), elapsedMillis, timedOut));
+        if (slowest.size() > MAX_REPORTED) {
+            slowest.poll();
+        }
+    }
+
+    private static String preview(String statement) {
+        String preview = statement.length() > PREVIEW_CHARS ? statement.substring(0, PREVIEW_CHARS) + "..." : statement;
+        return preview.replaceAll("\\s+", " ");
+    }
+
+    /**
+     * Report number of parses over budget and the slowest statements.
+     * @return Report string.
+     */
+    public synchronized String report() {
+        StringBuilder report = new StringBuilder();
+        report.append("Parse watchdog: ").append(parsed.get()).append(" parsed, ")
+                .append(timeouts.get()).append(" over ").append(budgetMillis).append(" ms budget, ")
+                .append(skipped.get()).append(" skipped with ").append(maxStuck).append(" parses over budget");
+        if (slowest.isEmpty()) {
+            return report.toString();
+        }
+
+        List<SlowStatement> statements = new ArrayList<>(slowest);
+        Collections.sort(statements, Collections.reverseOrder(slowest.comparator()));
+        report.append(". Slowest statements over ").append(slowMillis).append(" ms:");
+        for (SlowStatement statement : statements) {
+            report.append("\n  ").append(statement.timedOut ? ">" : "").append(statement.elapsedMillis).append(" ms, ")
+                    .append(statement.chars).append(" chars: ").append(statement.preview);
+        }
+        return report.toString();
+    }
+
+    /**
+     * Stop waiting parses. Parses over budget may still be running on daemon threads.
+     */
+    public void close() {
+        executor.shutdownNow();
+    }
+
+    private static class SlowStatement {
+        private String preview;
+        private int chars;
+        private long elapsedMillis;
+        private boolean timedOut;
+
+        private SlowStatement(String preview, int chars, long elapsedMillis, boolean timedOut) {
+            this.preview = preview;
+            this.chars = chars;
+            this.elapsedMillis = elapsedMillis;
+            this.timedOut = timedOut;
+        }
+    }
+}
@@ -4,10 +4,19 @@ import com.cloudera.api.swagger.model.ApiImpalaQuery;
 import com.cloudera.api.swagger.model.ApiImpalaQueryDetailsResponse;
 
 import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.Instant;
+import java.time.OffsetDateTime;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.Collection;
 import java.util.HashSet;
 import java.util.Set;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
+import java.util.StringJoiner;
 
 public class QueryAnalyzeUtil {
     // Attributes for one impala query.
@@ -19,21 +28,138 @@ public class QueryAnalyzeUtil {
     public static final String RESOURCE_POOL = "pool";
     public static final String USER = "user";
 
+    // Markers around the statement in the query profile.
+    private static final String SQL_STATEMENT_MARKER = "Sql Statement:";
+    private static final String COORDINATOR_MARKER = "Coordinator:";
+
+    // ISO8601 format used in configuration like 2019-04-27T16:27:24+0800.
+    private static final DateTimeFormatter ISO_TIME_FORMAT = DateTimeFormatter.ofPattern("yyyy-MM-dd'T'HH:mm:ss[.SSS]XX");
+    // Format of time sent to CM.
+    private static final DateTimeFormatter CM_TIME_FORMAT = DateTimeFormatter.ofPattern("yyyy-MM-dd'T'HH:mm:ss.SSSXX")
+            .withZone(ZoneOffset.UTC);
+
+    /**
+     * Parse ISO8601 time. Both 2019-04-27T16:27:24+0800 and 2019-04-27T08:27:24.000Z are accepted.
+     * @param time ISO8601 format time.
+     * @return Milliseconds since epoch.
+     */
+    public static long parseIsoTime(String time) {
+        try {
+            return OffsetDateTime.parse(time.trim(), DateTimeFormatter.ISO_OFFSET_DATE_TIME).toInstant().toEpochMilli();
+        } catch (DateTimeParseException e) {
+            return OffsetDateTime.parse(time.trim(), ISO_TIME_FORMAT).toInstant().toEpochMilli();
+        }
+    }
+
+    /**
+     * Get start time of the query from CM response.
+     * @param query Query from CM search.
+     * @return Milliseconds since epoch. QueryBase.NO_TIME if missing or not readable.
+     */
+    public static long parseStartTime(ApiImpalaQuery query) {
+        if (query.getStartTime() == null || query.getStartTime().isEmpty()) {
+            return QueryBase.NO_TIME;
+        }
+        try {
+            return parseIsoTime(query.getStartTime());
+        } catch (DateTimeParseException e) {
+            return QueryBase.NO_TIME;
+        }
+    }
+
+    /**
+     * Format time to ISO8601 string in UTC for CM search.
+     * @param millis Milliseconds since epoch.
+     * @return ISO8601 format time.
+     */
+    public static String formatIsoTime(long millis) {
+        return CM_TIME_FORMAT.format(Instant.ofEpochMilli(millis));
+    }
+
     /**
      * Collect statement from Impala detail response.
      * @param detail ApiImpalaQueryDetailsResponse from CM API.
      * @return String from detailed response.
      */
     public static String parseStatementFromDetail(ApiImpalaQueryDetailsResponse detail) {
-        String impalaSqlExtractionPattern = ".*Sql Statement:(.*)Coordinator:.*";
-        Pattern p = Pattern.compile(impalaSqlExtractionPattern);
-        Matcher m = p.matcher(detail.getDetails().replaceAll("[\r\n]", " "));
+        return parseStatementFromDetail(detail.getDetails());
+    }
 
-        if(m.find()) {
-            return m.group(1);
-        } else {
+    /**
+     * Collect statement between "Sql Statement:" and the next "Coordinator:" of the query profile.
+     * Only the statement is copied, so the time does not grow with the rest of the profile.
+     * @param details Query details text from CM API.
+     * @return Statement with line breaks as spaces. Null if not found.
+     */
+    public static String parseStatementFromDetail(String details) {
+        if (details == null) {
             return null;
         }
+        int start = details.indexOf(SQL_STATEMENT_MARKER);
+        if (start < 0) {
+            return null;
+        }
+        start += SQL_STATEMENT_MARKER.length();
+        int end = details.indexOf(COORDINATOR_MARKER, start);
+        if (end < 0) {
+            return null;
+        }
+
+        char[] statement = new char[end - start];
+        details.getChars(start, end, statement, 0);
+        for (int i = 0; i < statement.length; i++) {
+            if (statement[i] == '\r' || statement[i] == '\n') {
+                statement[i] = ' ';
+            }
+        }
+        return new String(statement);
+    }
+
+    /**
+     * Get SHA-1 of the string in hex. Used to name local files by search keys.
+     * @param value String to hash.
+     * @return SHA-1 in 40 hex characters.
+     */
+    public static String sha1Hex(String value) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-1");
+            byte[] hash = digest.digest(value.getBytes(StandardCharsets.UTF_8));
+            return String.format("%040x", new BigInteger(1, hash));
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-1 not supported", e);
+        }
+    }
+
+    /**
+     * Create filter to search only statements mentioning any of the tables.
+     * Only table name is matched as statements may not have the db name.
+     * @param filter Base filter of the search.
+     * @param tables Tables in db.tablename format.
+     * @return Filter on both the base filter and the tables.
+     */
+    public static String getTargetedFilter(String filter, Collection<String> tables) {
+        Set<String> names = new HashSet<>();
+        StringJoiner regex = new StringJoiner("|", "(?i).*(", ").*");
+        for (String table : tables) {
+            String name = getTblName(table);
+            if (names.add(name)) {
+                StringBuilder escaped = new StringBuilder();
+                for (char c : name.toCharArray()) {
+                    if (Character.isLetterOrDigit(c) || c == '_') {
+                        escaped.append(c);
+                    } else {
+                        escaped.append('[').append(c).append(']');
+                    }
+                }
+                regex.add(escaped);
+            }
+        }
+
+        String tableFilter = "statement RLIKE \"" + regex.toString() + "\"";
+        if (filter == null || filter.trim().isEmpty()) {
+            return tableFilter;
+        }
+        return "(" + filter + ") and " + tableFilter;
     }
 
     /**
@@ -56,10 +182,8 @@ public class QueryAnalyzeUtil {
      * @return True if the table has the key information.
      */
     public static boolean allExclude(Set<String> tbls, Set<String> excludeKey, Set<String> excludeTbls) {
-        Set<String> tblsNotExclude = new HashSet<>(tbls);
-        tblsNotExclude.removeAll(excludeTbls);
-        for(String tbl : tblsNotExclude) {
-            if(!hasKeyWd(tbl, excludeKey)) {
+        for(String tbl : tbls) {
+            if(!excludeTbls.contains(tbl) && !hasKeyWd(tbl, excludeKey)) {
                 return false;
             }
         }
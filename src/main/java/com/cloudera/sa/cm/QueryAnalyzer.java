@@ -1,12 +1,16 @@
 package com.cloudera.sa.cm;
 
 import com.cloudera.api.swagger.model.ApiImpalaQuery;
-import com.cloudera.api.swagger.model.ApiImpalaQueryDetailsResponse;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.*;
 import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 /**
  * Main class to performance the analyze.
@@ -62,6 +66,91 @@ public class QueryAnalyzer {
     public static final String ALL_SOURCE_FOUND = "all_source_only";
     public static final String DEFAULT_ALL_SOURCE_FOUND = "false";
 
+    // Number of sub time ranges to split the search. Each range is searched concurrently.
+    public static final String FETCH_SLICES = "fetch_slices";
+    public static final String DEFAULT_FETCH_SLICES = "1";
+    // Number of threads to search the sub time ranges.
+    public static final String FETCH_THREADS = "fetch_threads";
+    public static final String DEFAULT_FETCH_THREADS = "4";
+    // Number of CM pages to search ahead while current page is parsed. 0 to disable.
+    public static final String PREFETCH_PAGES = "prefetch_pages";
+    public static final String DEFAULT_PREFETCH_PAGES = "2";
+    // Number of threads to get full statements of truncated queries from query details.
+    public static final String DETAIL_THREADS = "detail_threads";
+    public static final String DEFAULT_DETAIL_THREADS = "8";
+    // Only search queries that mention target tables of tasks, and then their upstream tables until closure.
+    public static final String TARGETED_FETCH = "targeted_fetch";
+    public static final String DEFAULT_TARGETED_FETCH = "false";
+    // Number of tables in one targeted search filter.
+    public static final String TARGETED_BATCH_SIZE = "targeted_batch_size";
+    public static final String DEFAULT_TARGETED_BATCH_SIZE = "50";
+    // Plan length of searched time windows from scan limit feedback, so each window stays under CM scan limit.
+    public static final String ADAPTIVE_WINDOW = "adaptive_window";
+    public static final String DEFAULT_ADAPTIVE_WINDOW = "false";
+    // Length of the first adaptive window in minutes.
+    public static final String ADAPTIVE_INITIAL_WINDOW_MINUTES = "adaptive_initial_window_minutes";
+    public static final String DEFAULT_ADAPTIVE_INITIAL_WINDOW_MINUTES = "60";
+    // Decode CM search response as a stream and keep only fields used. Cuts memory on large pages.
+    public static final String STREAMING_DECODE = "streaming_decode";
+    public static final String DEFAULT_STREAMING_DECODE = "false";
+    // Directory to cache queries searched from CM. Empty to disable the cache.
+    public static final String CACHE_DIR = "cache_dir";
+    public static final String DEFAULT_CACHE_DIR = "";
+    // Length of one cache bucket in minutes.
+    public static final String CACHE_BUCKET_MINUTES = "cache_bucket_minutes";
+    public static final String DEFAULT_CACHE_BUCKET_MINUTES = "60";
+    // Bucket is only cached after it ended for this long, so CM will not add new queries into it.
+    public static final String CACHE_SEAL_MINUTES = "cache_seal_minutes";
+    public static final String DEFAULT_CACHE_SEAL_MINUTES = "60";
+    // Directory to record all CM responses into. Empty to disable recording.
+    public static final String RECORD_DIR = "record_dir";
+    public static final String DEFAULT_RECORD_DIR = "";
+    // Directory of recorded CM responses to replay instead of searching CM. Empty to disable replay.
+    public static final String REPLAY_DIR = "replay_dir";
+    public static final String DEFAULT_REPLAY_DIR = "";
+    // Latency added to each replayed response in milliseconds.
+    public static final String REPLAY_LATENCY_MS = "replay_latency_ms";
+    public static final String DEFAULT_REPLAY_LATENCY_MS = "0";
+    // List of cluster:service to search in one run. Empty to use cluster_name and service_name.
+    public static final String SERVICE_LIST = "service_list";
+    public static final String DEFAULT_SERVICE_LIST = "";
+    // Max number of statement fingerprints to keep parsed tables for. 0 to disable.
+    public static final String FINGERPRINT_CACHE_SIZE = "fingerprint_cache_size";
+    public static final String DEFAULT_FINGERPRINT_CACHE_SIZE = "100000";
+    // File to keep the fingerprint cache between runs. Empty to only cache in memory.
+    public static final String FINGERPRINT_CACHE_FILE = "fingerprint_cache_file";
+    public static final String DEFAULT_FINGERPRINT_CACHE_FILE = "";
+    // Number of threads to parse statements. 0 to use all cores.
+    public static final String PARSE_THREADS = "parse_threads";
+    public static final String DEFAULT_PARSE_THREADS = "0";
+    // How to get tables from statements: impala, fast or verify.
+    public static final String TABLE_EXTRACTOR = "table_extractor";
+    public static final String DEFAULT_TABLE_EXTRACTOR = "impala";
+    // Max time to parse one statement in milliseconds. 0 for no limit.
+    public static final String PARSE_TIMEOUT_MS = "parse_timeout_ms";
+    public static final String DEFAULT_PARSE_TIMEOUT_MS = "60000";
+    // Max number of parses left running over parse_timeout_ms. Statements beyond it are not parsed.
+    public static final String PARSE_MAX_STUCK = "parse_max_stuck";
+    public static final String DEFAULT_PARSE_MAX_STUCK = "4";
+    // Keep statement text compressed off heap.
+    public static final String STATEMENT_STORE = "statement_store";
+    public static final String DEFAULT_STATEMENT_STORE = "true";
+    // Keep query metrics in primitive columns.
+    public static final String METRICS_STORE = "metrics_store";
+    public static final String DEFAULT_METRICS_STORE = "true";
+    // Max number of table ids kept in upstream closures shared by tasks. 0 to search each task on its own.
+    public static final String CLOSURE_CACHE_SIZE = "closure_cache_size";
+    public static final String DEFAULT_CLOSURE_CACHE_SIZE = "20000000";
+    // Number of threads to search tasks. 0 to use all cores. 1 to search one task at a time in input order.
+    public static final String TASK_THREADS = "task_threads";
+    public static final String DEFAULT_TASK_THREADS = "0";
+    // Max number of queries waiting between two stages of the fetch, detail, parse and index pipeline.
+    public static final String PIPELINE_QUEUE_SIZE = "pipeline_queue_size";
+    public static final String DEFAULT_PIPELINE_QUEUE_SIZE = "1000";
+    // How often to log throughput and queue depth of the pipeline stages in seconds. 0 to only log at the end.
+    public static final String PIPELINE_REPORT_SECONDS = "pipeline_report_seconds";
+    public static final String DEFAULT_PIPELINE_REPORT_SECONDS = "30";
+
     public static final String DEFAULT_INPUT_SPLIT = "\\|";
 
     private String host;
@@ -77,6 +166,7 @@ public class QueryAnalyzer {
 
     private String clusterName;
     private String serviceName;
+    private List<ServiceTarget> services;
     private String from;
     private String to;
     private String filter;
@@ -85,10 +175,33 @@ public class QueryAnalyzer {
     private boolean outputFoundOnly;
     private boolean allSrcFoundOnly;
 
+    private int detailThreads;
+    private int parseThreads;
+    private int taskThreads;
+    private int pipelineQueueSize;
+    private long pipelineReportMillis;
+    private boolean targetedFetch;
+    private int targetedBatchSize;
+    private String taskInput;
+    private Properties taskProps;
+
     private Map<String, QueryBase> allQueries;
+    private TargetIndex targetIndex;
+    private LineageGraph lineageGraph;
+    private ClosureCache closureCache;
+    private TraversalContext traversalContext;
+    private long closureCacheSize;
+    private StatementFingerprintCache fingerprintCache;
+    private String fingerprintCacheFile;
+    private LightweightTableExtractor.Mode extractorMode;
+    private LightweightTableExtractor extractor;
+    private ParseWatchdog watchdog;
+    private StatementStore statementStore;
+    private MetricsStore metricsStore;
 
     private Set<String> excludeTbls;
     private Set<String> excludeKeys;
+    private ExclusionFilter exclusion;
 
     private Map<String, Double> queueSetting;
 
@@ -102,16 +215,63 @@ public class QueryAnalyzer {
         isSSLEnabled = Boolean.parseBoolean(props.getProperty(ENABLE_SSL, DEFAULT_ENABLE_SSL));
         pemPath = props.getProperty(PEM_PATH, DEFAULT_PEM_PATH);
 
-        client = new ImpalaQuerySearch(host, port, version, username, password, isSSLEnabled, pemPath);
+        String recordDir = props.getProperty(RECORD_DIR, DEFAULT_RECORD_DIR);
+        String replayDir = props.getProperty(REPLAY_DIR, DEFAULT_REPLAY_DIR);
+        if (!replayDir.isEmpty()) {
+            long latency = Long.parseLong(props.getProperty(REPLAY_LATENCY_MS, DEFAULT_REPLAY_LATENCY_MS));
+            LOGGER.info("Replaying CM responses from " + replayDir);
+            client = new ReplayImpalaQuerySearch(host, port, version, username, password, isSSLEnabled, pemPath,
+                    replayDir, latency);
+        } else if (!recordDir.isEmpty()) {
+            LOGGER.info("Recording CM responses into " + recordDir);
+            client = new RecordingImpalaQuerySearch(host, port, version, username, password, isSSLEnabled, pemPath,
+                    recordDir);
+        } else {
+            client = new ImpalaQuerySearch(host, port, version, username, password, isSSLEnabled, pemPath);
+        }
+        client.setFetchSlices(Integer.parseInt(props.getProperty(FETCH_SLICES, DEFAULT_FETCH_SLICES)));
+        int fetchThreads = Integer.parseInt(props.getProperty(FETCH_THREADS, DEFAULT_FETCH_THREADS));
+        client.setFetchThreads(fetchThreads);
+        client.setPrefetchPages(Integer.parseInt(props.getProperty(PREFETCH_PAGES, DEFAULT_PREFETCH_PAGES)));
+        detailThreads = Integer.parseInt(props.getProperty(DETAIL_THREADS, DEFAULT_DETAIL_THREADS));
+        if (detailThreads < 1) {
+            throw new IllegalArgumentException(DETAIL_THREADS + " must be at least 1, got " + detailThreads);
+        }
+        // Detail queries and streaming searches share the pooled HTTP connections.
+        client.setMaxHttpConnections(detailThreads + fetchThreads);
+        if (Boolean.parseBoolean(props.getProperty(ADAPTIVE_WINDOW, DEFAULT_ADAPTIVE_WINDOW))) {
+            long initialWindowMillis = Long.parseLong(props.getProperty(ADAPTIVE_INITIAL_WINDOW_MINUTES,
+                    DEFAULT_ADAPTIVE_INITIAL_WINDOW_MINUTES)) * 60 * 1000;
+            client.setWindowPlanner(new AdaptiveWindowPlanner(initialWindowMillis, 1000, Long.MAX_VALUE));
+        }
+        client.setStreamingDecode(Boolean.parseBoolean(props.getProperty(STREAMING_DECODE, DEFAULT_STREAMING_DECODE)));
+
+        String cacheDir = props.getProperty(CACHE_DIR, DEFAULT_CACHE_DIR);
+        if (!cacheDir.isEmpty()) {
+            long bucketMillis = Long.parseLong(props.getProperty(CACHE_BUCKET_MINUTES, DEFAULT_CACHE_BUCKET_MINUTES)) * 60 * 1000;
+            long sealMillis = Long.parseLong(props.getProperty(CACHE_SEAL_MINUTES, DEFAULT_CACHE_SEAL_MINUTES)) * 60 * 1000;
+            client.setQueryCache(new QueryCache(cacheDir, bucketMillis, sealMillis, client.getJson()));
+        }
 
         clusterName = props.getProperty(CLUSTER_NAME);
         serviceName = props.getProperty(SERVICE_NAME);
+        services = new ArrayList<>();
+        String serviceString = props.getProperty(SERVICE_LIST, DEFAULT_SERVICE_LIST);
+        if (serviceString.isEmpty()) {
+            services.add(new ServiceTarget(clusterName, serviceName));
+        } else {
+            for (String service : serviceString.split(DEFAULT_LIST_DELIMITER)) {
+                String[] serviceSplit = service.trim().split(":");
+                services.add(new ServiceTarget(serviceSplit[0], serviceSplit[1]));
+            }
+        }
         from = props.getProperty(QUERY_START_TIME);
         to = props.getProperty(QUERY_END_TIME);
         filter = props.getProperty(QUERY_FILTER, DEFAULT_QUERY_FILTER);
         String excludeString = props.getProperty(EXCLUDE_TBL_LIST);
 
         allQueries = new HashMap<>();
+        targetIndex = new TargetIndex();
         excludeTbls = new HashSet<>();
         if(excludeString != null) {
             excludeTbls.addAll(Arrays.asList(excludeString.split(DEFAULT_LIST_DELIMITER)));
@@ -122,8 +282,56 @@ public class QueryAnalyzer {
         if(excludeKeyString != null) {
             excludeKeys.addAll(Arrays.asList(excludeKeyString.split(DEFAULT_LIST_DELIMITER)));
         }
+        exclusion = new ExclusionFilter(excludeTbls, excludeKeys);
+        closureCacheSize = Long.parseLong(props.getProperty(CLOSURE_CACHE_SIZE, DEFAULT_CLOSURE_CACHE_SIZE));
+
+        parseThreads = Integer.parseInt(props.getProperty(PARSE_THREADS, DEFAULT_PARSE_THREADS));
+        if (parseThreads <= 0) {
+            parseThreads = Runtime.getRuntime().availableProcessors();
+        }
+        pipelineQueueSize = Integer.parseInt(props.getProperty(PIPELINE_QUEUE_SIZE, DEFAULT_PIPELINE_QUEUE_SIZE));
+        if (pipelineQueueSize < 1) {
+            throw new IllegalArgumentException(PIPELINE_QUEUE_SIZE + " must be at least 1, got " + pipelineQueueSize);
+        }
+        pipelineReportMillis = Long.parseLong(props.getProperty(PIPELINE_REPORT_SECONDS,
+                DEFAULT_PIPELINE_REPORT_SECONDS)) * 1000;
+        taskThreads = Integer.parseInt(props.getProperty(TASK_THREADS, DEFAULT_TASK_THREADS));
+        if (taskThreads <= 0) {
+            taskThreads = Runtime.getRuntime().availableProcessors();
+        }
+
+        extractorMode = LightweightTableExtractor.Mode.valueOf(
+                props.getProperty(TABLE_EXTRACTOR, DEFAULT_TABLE_EXTRACTOR).trim().toUpperCase());
+        extractor = new LightweightTableExtractor();
+        long parseTimeout = Long.parseLong(props.getProperty(PARSE_TIMEOUT_MS, DEFAULT_PARSE_TIMEOUT_MS));
+        if (parseTimeout > 0) {
+            watchdog = new ParseWatchdog(parseTimeout,
+                    Integer.parseInt(props.getProperty(PARSE_MAX_STUCK, DEFAULT_PARSE_MAX_STUCK)));
+        }
+        if (Boolean.parseBoolean(props.getProperty(STATEMENT_STORE, DEFAULT_STATEMENT_STORE))) {
+            statementStore = new StatementStore();
+            QueryBase.setStatementStore(statementStore);
+        }
+        if (Boolean.parseBoolean(props.getProperty(METRICS_STORE, DEFAULT_METRICS_STORE))) {
+            metricsStore = new MetricsStore();
+            QueryBase.setMetricsStore(metricsStore);
+        }
+
+        int fingerprintCacheSize = Integer.parseInt(props.getProperty(FINGERPRINT_CACHE_SIZE,
+                DEFAULT_FINGERPRINT_CACHE_SIZE));
+        fingerprintCacheFile = props.getProperty(FINGERPRINT_CACHE_FILE, DEFAULT_FINGERPRINT_CACHE_FILE);
+        if (fingerprintCacheSize > 0) {
+            fingerprintCache = new StatementFingerprintCache(fingerprintCacheSize);
+            if (!fingerprintCacheFile.isEmpty()) {
+                fingerprintCache.load(new File(fingerprintCacheFile));
+            }
+        }
 
         reader = TaskReaderFactory.getReader(input, props);
+        taskInput = input;
+        taskProps = props;
+        targetedFetch = Boolean.parseBoolean(props.getProperty(TARGETED_FETCH, DEFAULT_TARGETED_FETCH));
+        targetedBatchSize = Integer.parseInt(props.getProperty(TARGETED_BATCH_SIZE, DEFAULT_TARGETED_BATCH_SIZE));
         ignoreDB = Boolean.parseBoolean(props.getProperty(IGNORE_DB_NAME, DEFAULT_IGNORE_DB_NAME));
         outputFoundOnly = Boolean.parseBoolean(props.getProperty(FOUND_TASK_ONLY, DEFAULT_FOUND_TASK_ONLY));
         allSrcFoundOnly = Boolean.parseBoolean(props.getProperty(ALL_SOURCE_FOUND, DEFAULT_ALL_SOURCE_FOUND));
@@ -146,86 +354,340 @@ public class QueryAnalyzer {
      * @throws Exception
      */
     public Map<String, QueryBase> getQueries() throws Exception {
-        QuerySearchResult result = client.query(clusterName, serviceName, filter, from, to);
+        if (targetedFetch) {
+            return getQueriesTargeted();
+        }
+        collectQueries(filter, null);
+        return allQueries;
+    }
 
-        int count = 0;
-        ApiImpalaQuery query;
-        while((query = result.nextQuery()) != null) {
-            count += 1;
+    /**
+     * Get queries only for target tables of all tasks.
+     * Tables are searched in batches with a filter on the statement. Source tables of the queries found are
+     * searched in the next round, until no new upstream table is found.
+     * @return Map of Queries with target table as the key and QueryBase as value.
+     * @throws Exception
+     */
+    public Map<String, QueryBase> getQueriesTargeted() throws Exception {
+        Set<String> pending = new HashSet<>();
+        TaskReader targetReader = TaskReaderFactory.getReader(taskInput, taskProps);
+        while (targetReader.hasNext()) {
+            targetReader.next();
+            for (String target : targetReader.nextTargets()) {
+                if (!exclusion.isIgnored(target)) {
+                    pending.add(target);
+                }
+            }
+        }
 
-            if (LOGGER.isDebugEnabled()) {
-                LOGGER.debug("Retriving record count=" + count);
+        Set<String> searched = new HashSet<>();
+        Map<ServiceTarget, Set<String>> seenIds = new HashMap<>();
+        for (ServiceTarget service : services) {
+            seenIds.put(service, new HashSet<String>());
+        }
+        int round = 0;
+        while (!pending.isEmpty()) {
+            round += 1;
+            List<String> tables = new ArrayList<>(pending);
+            searched.addAll(pending);
+            pending.clear();
+            LOGGER.info("Targeted search round " + round + ": " + tables.size() + " tables.");
+
+            for (int i = 0; i < tables.size(); i += targetedBatchSize) {
+                List<String> batch = tables.subList(i, Math.min(tables.size(), i + targetedBatchSize));
+                collectQueries(QueryAnalyzeUtil.getTargetedFilter(filter, batch), seenIds);
             }
 
-            TaskMetrics metrics = QueryAnalyzeUtil.collectMetricsFromQueryResponse(query);
+            // Search upstream tables of all queries found in the next round, as jobs may be searched as of
+            // an earlier time than the latest query.
+            for (String table : tables) {
+                for (QueryBase query : targetIndex.producers(table)) {
+                    for (String source : query.getSource()) {
+                        if (!searched.contains(source) && !exclusion.isIgnored(source)) {
+                            pending.add(source);
+                        }
+                    }
+                }
+            }
+        }
+        LOGGER.info("Targeted search finished in " + round + " rounds with " + searched.size() + " tables.");
+        return allQueries;
+    }
 
-            String statement = query.getStatement();
+    /**
+     * Search queries from all services and add them to the target index. All queries keeps the latest query
+     * of each table.
+     * Services are searched concurrently, each into its own index. The index orders queries of a table by
+     * start time, so the same queries are kept whatever order the services finish in.
+     * @param searchFilter Filter of the search.
+     * @param seenIds Ids of queries already added per service, to skip them in this search. Null to add all.
+     * @throws Exception
+     */
+    private void collectQueries(final String searchFilter, final Map<ServiceTarget, Set<String>> seenIds) throws Exception {
+        if (services.size() == 1) {
+            ServiceTarget service = services.get(0);
+            collectQueries(service, searchFilter, seenIds == null ? null : seenIds.get(service), targetIndex);
+            updateAllQueries();
+            return;
+        }
 
-            if (LOGGER.isDebugEnabled()) {
-                LOGGER.debug("Query info: memory=" + metrics.getMaxMemoryGb() + "GB, duration=" + metrics.getDuration() + "s");
+        ExecutorService pool = Executors.newFixedThreadPool(services.size());
+        try {
+            List<Future<TargetIndex>> futures = new ArrayList<>();
+            for (final ServiceTarget service : services) {
+                futures.add(pool.submit(new Callable<TargetIndex>() {
+                    @Override
+                    public TargetIndex call() throws Exception {
+                        TargetIndex queries = new TargetIndex();
+                        collectQueries(service, searchFilter, seenIds == null ? null : seenIds.get(service), queries);
+                        return queries;
+                    }
+                }));
             }
 
-            // If the SQL too long,
-            if (statement.endsWith("...")) {
-                LOGGER.info("Query too long for cm. Checking details for query " + query.getQueryId());
+            for (int i = 0; i < futures.size(); i++) {
+                TargetIndex queries;
                 try {
-                    ApiImpalaQueryDetailsResponse detail = client.queryDetailThroughHTTP(clusterName, serviceName, query.getQueryId());
-                    statement = QueryAnalyzeUtil.parseStatementFromDetail(detail);
-                } catch (Exception e) {
-                    LOGGER.error("Failed to get query details for id " + query.getQueryId(), e);
-                    continue;
+                    queries = futures.get(i).get();
+                } catch (ExecutionException e) {
+                    LOGGER.error("Failed to search queries from " + services.get(i));
+                    throw e.getCause() instanceof Exception ? (Exception) e.getCause() : e;
                 }
+                LOGGER.info("Collected " + queries.size() + " tables from " + services.get(i));
+                targetIndex.addAll(queries);
             }
+        } finally {
+            pool.shutdownNow();
+        }
+        updateAllQueries();
+    }
+
+    /**
+     * Sort the target index and keep the latest query of each table in all queries.
+     */
+    private void updateAllQueries() {
+        targetIndex.compact();
+        allQueries.clear();
+        allQueries.putAll(targetIndex.latestMap());
+        LOGGER.info("Target index has " + targetIndex.versionCount() + " queries of " + targetIndex.size()
+                + " tables.");
+    }
+
+    /**
+     * Search queries from one service and add them to the target index.
+     * @param service Service to search.
+     * @param searchFilter Filter of the search.
+     * @param seenIds Ids of queries already added, to skip them in this search. Null to add all.
+     * @param queries Index to add queries by target table.
+     * @throws Exception
+     */
+    private void collectQueries(ServiceTarget service, String searchFilter, Set<String> seenIds,
+                                TargetIndex queries) throws Exception {
+        QueryStream result = client.query(service.getClusterName(), service.getServiceName(), searchFilter, from, to);
+        try {
+            collectQueries(service, result, seenIds, queries);
+        } finally {
+            result.close();
+        }
+    }
 
-            if (LOGGER.isDebugEnabled()) {
-                LOGGER.debug(statement);
+    /**
+     * Parse all queries from the stream and add them to the index, in a pipeline of fetch, detail, parse and
+     * index stages.
+     * @param service Service the stream is searched from.
+     * @param result Query stream from CM search.
+     * @param seenIds Ids of queries already added, to skip them in this search. Null to add all.
+     * @param queries Index to add queries by target table.
+     * @throws Exception
+     */
+    private void collectQueries(ServiceTarget service, QueryStream result, Set<String> seenIds,
+                                final TargetIndex queries) throws Exception {
+        // Queries of this search go after the queries of earlier searches of the same start time.
+        final long firstSequence = queries.nextSequence();
+        QueryDetailResolver resolver = new QueryDetailResolver(client, service.getClusterName(),
+                service.getServiceName());
+        QueryPipeline pipeline = new QueryPipeline(service.toString(), resolver,
+                new QueryPipeline.StatementParser() {
+                    @Override
+                    public QueryBase parse(String statement, TaskMetrics metrics) throws Exception {
+                        return parseQuery(statement, metrics);
+                    }
+                }, new QueryPipeline.QuerySink() {
+                    @Override
+                    public void add(QueryBase query, long sequence) {
+                        addQuery(query, firstSequence + sequence, queries);
+                    }
+                }, detailThreads, parseThreads, pipelineQueueSize, pipelineReportMillis);
+        try {
+            pipeline.run(result, seenIds);
+        } finally {
+            resolver.close();
+        }
+    }
+
+    /**
+     * Add the parsed query to the index by its target tables.
+     * @param node Parsed query.
+     * @param sequence Order of the query among queries of the same start time.
+     * @param queries Index to add queries by target table.
+     */
+    private void addQuery(QueryBase node, long sequence, TargetIndex queries) {
+        if(!node.getSource().isEmpty() && !node.getTarget().isEmpty()) {
+            if(LOGGER.isDebugEnabled()) {
+                LOGGER.debug("Source Tables====");
+                for(String source : node.getSource()) {
+                    LOGGER.debug(source);
+                }
             }
 
-            try {
-                QueryBase node = new QueryBase(statement, metrics);
+            if(LOGGER.isDebugEnabled()) {
+                LOGGER.debug("Target Tables====");
+            }
 
-                if(!node.getSource().isEmpty() && !node.getTarget().isEmpty()) {
-                    if(LOGGER.isDebugEnabled()) {
-                        LOGGER.debug("Source Tables====");
-                        for(String source : node.getSource()) {
-                            LOGGER.debug(source);
-                        }
+
+            Set<String> source = node.getSource();
+            // Only record queries if not all source tables should be excluded
+            if (!exclusion.allExclude(source)) {
+                for(String target : node.getTarget()) {
+                    // Ignore exclude target
+                    if (exclusion.hasExcludeKey(target)) {
+                        continue;
                     }
+                    // Kept for at least one table, so move it to the stores.
+                    node.store();
 
                     if(LOGGER.isDebugEnabled()) {
-                        LOGGER.debug("Target Tables====");
+                        LOGGER.debug(target);
                     }
 
+                    // Add queries to all target table.  Normally 1.
+                    // All queries of a table are kept, ordered by start time in the index.
+                    queries.add(target, node, sequence);
+                }
+            }
+        }
+    }
 
-                    Set<String> source = node.getSource();
-                    // Only record queries if not all source tables should be excluded
-                    if (!QueryAnalyzeUtil.allExclude(source, excludeKeys, excludeTbls)) {
-                        for(String target : node.getTarget()) {
-                            // Ignore exclude target
-                            if (QueryAnalyzeUtil.hasKeyWd(target, excludeKeys)) {
-                                continue;
-                            }
-
-                            if(LOGGER.isDebugEnabled()) {
-                                LOGGER.debug(target);
-                            }
-
-                            // Add queries to all target table.  Normally 1.
-                            if(!allQueries.containsKey(target)) {
-                                // We keep the latest SQL if duplicates found.
-                                allQueries.put(target, node);
-                            }
-                        }
-                    }
+    /**
+     * Parse the statement, or reuse tables parsed from a statement with the same fingerprint.
+     * @param statement SQL statement.
+     * @param metrics Metrics of the query.
+     * @return Parsed query.
+     * @throws Exception
+     */
+    private QueryBase parseQuery(String statement, TaskMetrics metrics) throws Exception {
+        if (LOGGER.isDebugEnabled()) {
+            LOGGER.debug(statement);
+        }
+        if (fingerprintCache == null) {
+            return extractTables(statement, metrics);
+        }
+        String fingerprint = StatementFingerprintCache.fingerprint(statement);
+        StatementFingerprintCache.Tables tables = fingerprintCache.get(fingerprint);
+        if (tables != null) {
+            return new QueryBase(statement, metrics, tables.getSource(), tables.getTarget());
+        }
+        QueryBase node = extractTables(statement, metrics);
+        // A statement skipped over the parse budget may be parsed next time, so its empty tables are not kept.
+        if (!node.isSkipped()) {
+            fingerprintCache.put(fingerprint, node.getSource(), node.getTarget());
+        }
+        return node;
+    }
+
+    /**
+     * Get tables of the statement with the configured extractor.
+     * @param statement SQL statement.
+     * @param metrics Metrics of the query.
+     * @return Parsed query.
+     * @throws Exception
+     */
+    private QueryBase extractTables(String statement, TaskMetrics metrics) throws Exception {
+        if (extractorMode == LightweightTableExtractor.Mode.IMPALA) {
+            return parseImpala(statement, metrics);
+        }
+
+        LightweightTableExtractor.Result result = LightweightTableExtractor.extract(statement);
+        if (extractorMode == LightweightTableExtractor.Mode.VERIFY) {
+            QueryBase node = parseImpala(statement, metrics);
+            if (!node.isSkipped()) {
+                extractor.verify(statement, result, node.getSource(), node.getTarget());
+            }
+            return node;
+        }
+
+        if (result.isConfident()) {
+            extractor.recordFast();
+            return new QueryBase(statement, metrics, result.getSource(), result.getTarget());
+        }
+        extractor.recordFallback(result);
+        return parseImpala(statement, metrics);
+    }
+
+    /**
+     * Parse the statement with Impala FE parser within the parse budget. If over budget, take the tables from
+     * LightweightTableExtractor if it is confident, otherwise skip the statement.
+     * @param statement SQL statement.
+     * @param metrics Metrics of the query.
+     * @return Parsed query. No tables and marked skipped if skipped.
+     * @throws Exception
+     */
+    private QueryBase parseImpala(final String statement, final TaskMetrics metrics) throws Exception {
+        if (watchdog == null) {
+            return new QueryBase(statement, metrics);
+        }
+        return watchdog.parse(statement, new Callable<QueryBase>() {
+            @Override
+            public QueryBase call() throws Exception {
+                return new QueryBase(statement, metrics);
+            }
+        }, new Callable<QueryBase>() {
+            @Override
+            public QueryBase call() {
+                LightweightTableExtractor.Result result = LightweightTableExtractor.extract(statement);
+                if (result.isConfident()) {
+                    LOGGER.warn("Using tables from fast extractor for statement over parse budget.");
+                    return new QueryBase(statement, metrics, result.getSource(), result.getTarget());
                 }
+                LOGGER.warn("Skipped statement over parse budget: " + result.getReason());
+                QueryBase skipped = new QueryBase(statement, metrics, new HashSet<String>(), new HashSet<String>());
+                skipped.setSkipped(true);
+                return skipped;
+            }
+        });
+    }
 
-            } catch (Exception e) {
-                LOGGER.error("Failed to parse SQL: " + query.getStatement(), e);
-                e.printStackTrace();
-                continue;
+    /**
+     * Release connections to CM and save the fingerprint cache.
+     */
+    public void close() {
+        client.close();
+        if (extractorMode != LightweightTableExtractor.Mode.IMPALA) {
+            LOGGER.info(extractor.report());
+        }
+        if (watchdog != null) {
+            LOGGER.info(watchdog.report());
+            watchdog.close();
+        }
+        if (statementStore != null) {
+            LOGGER.info(statementStore.report());
+        }
+        if (metricsStore != null) {
+            LOGGER.info(metricsStore.report());
+        }
+        if (closureCache != null) {
+            LOGGER.info(closureCache.report());
+        }
+        if (fingerprintCache != null) {
+            LOGGER.info(fingerprintCache.report());
+            if (!fingerprintCacheFile.isEmpty()) {
+                try {
+                    fingerprintCache.save(new File(fingerprintCacheFile));
+                } catch (IOException e) {
+                    LOGGER.error("Failed to save fingerprint cache to " + fingerprintCacheFile, e);
+                }
             }
         }
-        return allQueries;
     }
 
     /**
@@ -449,13 +911,133 @@ public class QueryAnalyzer {
      * @return
      */
     public TaskInfoCollector nextTask() {
+        TaskInfoCollector task = readTask();
+        if (traversalContext == null) {
+            traversalContext = new TraversalContext(getLineageGraph());
+        }
+        searchTask(task, traversalContext);
+        return task;
+    }
+
+    /**
+     * Read next task from input file without searching it.
+     * @return Task to search.
+     */
+    private TaskInfoCollector readTask() {
         String id = reader.next();
-        LOGGER.info("Searching for query:" + id);
         TaskInfoCollector task = new TaskInfoCollector(id, reader.nextTargets(), reader.nextSources(), ignoreDB);
-        task.findSqlWfs(getAllQueries(), getExcludeTbls(), getExcludeKeys());
+        task.setRunTime(reader.nextRunTime());
         return task;
     }
 
+    /**
+     * Find all SQLs of the task in CM response. The lineage graph and closure cache must be created before
+     * calling from more than one thread.
+     * The task is searched on the lineage graph, which only has the latest query of each table. A task with
+     * a run time is searched again on the queries as of its run time if a table on its path was written
+     * after it.
+     * @param task Task to search.
+     * @param context Traversal context of the calling thread.
+     */
+    private void searchTask(TaskInfoCollector task, TraversalContext context) {
+        LOGGER.info("Searching for query:" + task.getId());
+        if (closureCacheSize > 0) {
+            task.findSqlCached(getClosureCache(), context);
+        } else {
+            task.findSqlWfs(context);
+        }
+        long runTime = task.getRunTime();
+        if (runTime != QueryBase.NO_TIME && runTime < targetIndex.getLatestTime() && task.hasPathWrittenAfter(runTime)) {
+            task.findSqlWfs(targetIndex.asOfMap(runTime), exclusion);
+        }
+    }
+
+    /**
+     * Check if the searched task should be in the output.
+     * @param task Searched task.
+     * @return False if skipped by found_only or all_source_only.
+     */
+    public boolean isOutput(TaskInfoCollector task) {
+        // If skip empty result
+        if (task.getQueryCount() == 0 && outputFoundOnly) {
+            return false;
+        }
+        return task.isAllSrcFound() || !allSrcFoundOnly;
+    }
+
+    /**
+     * Search all remaining tasks on task_threads threads and write the CSV lines of the output ones in input
+     * order.
+     * @param writer Writer of the CSV lines.
+     * @return Number of tasks searched.
+     * @throws Exception
+     */
+    public int writeTasks(BufferedWriter writer) throws Exception {
+        List<TaskInfoCollector> tasks = new ArrayList<>();
+        while (reader.hasNext()) {
+            tasks.add(readTask());
+        }
+        int count = tasks.size();
+        getLineageGraph();
+        if (closureCacheSize > 0) {
+            getClosureCache();
+        }
+        ParallelTaskEvaluator evaluator = new ParallelTaskEvaluator(getLineageGraph(),
+                new ParallelTaskEvaluator.TaskSearch() {
+                    @Override
+                    public String search(TaskInfoCollector task, TraversalContext context) {
+                        searchTask(task, context);
+                        return isOutput(task) ? prettyCsvLine(task) : null;
+                    }
+                }, taskThreads);
+        OrderedLineWriter ordered = new OrderedLineWriter(writer);
+        evaluator.evaluate(tasks, ordered);
+        ordered.flush();
+        return count;
+    }
+
+    /**
+     * Get number of threads to search tasks.
+     * @return Number of threads.
+     */
+    public int getTaskThreads() {
+        return taskThreads;
+    }
+
+    /**
+     * Get all queries of each table by start time.
+     * @return Target index. Empty if all queries are set instead of collected.
+     */
+    public TargetIndex getTargetIndex() {
+        return targetIndex;
+    }
+
+    /**
+     * Get upstream closures shared by tasks. Created with the lineage graph on first call.
+     * @return Closure cache.
+     */
+    public ClosureCache getClosureCache() {
+        if (closureCache == null) {
+            closureCache = new ClosureCache(getLineageGraph(), closureCacheSize);
+        }
+        return closureCache;
+    }
+
+    /**
+     * Get lineage graph of all queries. Built on first call, so all queries must be collected before.
+     * @return Lineage graph.
+     */
+    public LineageGraph getLineageGraph() {
+        if (lineageGraph == null) {
+            long start = System.currentTimeMillis();
+            lineageGraph = LineageGraph.build(allQueries, exclusion);
+            LOGGER.info("Built lineage graph of " + lineageGraph.tableCount() + " tables, "
+                    + lineageGraph.queryCount() + " queries and " + lineageGraph.componentCount() + " components in "
+                    + (System.currentTimeMillis() - start) + " ms.");
+        }
+        return lineageGraph;
+    }
+
     /**
      * Print header for csv output.
      * @return Header string.
@@ -467,12 +1049,17 @@ public class QueryAnalyzer {
         if(!queueSetting.isEmpty()) {
             header.append(",Max Resource Pool,Pool Utility,Proper Pool");
         }
+        if(services.size() > 1) {
+            header.append(",Services");
+        }
         return header.toString();
     }
 
     /**
      * The String is formmatted as id, user, maxMemoryGB, TotalDuration, MaxDuration, Total Admission Wait, TotalInput, Total Output
      * , File Formats,Pools,Found Source Tables, Not Found Source Tables, Total Query Count(, Max Resource Pool, Pool Utility, Proper Pool)
+     * (, Services). Services is only added when more than one service is searched, so the columns stay the same
+     * for a single service.
      *
      * @param task Collected task information to form the CSV.
      * @return CSV parsed String.
@@ -521,6 +1108,13 @@ public class QueryAnalyzer {
             output.append(",").append(properPool);
         }
 
+        if(services.size() > 1) {
+            StringJoiner serviceSj = new StringJoiner("#");
+            for(String service : task.getMetrics().getServices()) {
+                serviceSj.add(service);
+            }
+            output.append(",").append(serviceSj.toString());
+        }
 
         return output.toString();
     }
@@ -539,7 +1133,10 @@ public class QueryAnalyzer {
 
         // Read all OM input and search for queries.
         QueryAnalyzer analyzer = new QueryAnalyzer(args[1], props);
+        long startTime = System.currentTimeMillis();
         Map<String, QueryBase> allNodes = analyzer.getQueries();
+        long fetchTime = System.currentTimeMillis();
+        LOGGER.info("Collected " + allNodes.size() + " tables in " + (fetchTime - startTime) + " ms.");
 
 //        TaskReader reader = TaskReaderFactory.getReader(args[1], props);
         BufferedWriter writer = new BufferedWriter(new FileWriter(args[2]));
@@ -550,6 +1147,10 @@ public class QueryAnalyzer {
         // Form the output.
         writer.write(analyzer.prettyCsvHeader());
         writer.newLine();
+        int taskCount = 0;
+        if (analyzer.getTaskThreads() > 1) {
+            taskCount = analyzer.writeTasks(writer);
+        }
         while(analyzer.hasNextTask()) {
 //            String[] split = line.split(DEFAULT_INPUT_SPLIT);
 //            String id = split[0];
@@ -560,6 +1161,7 @@ public class QueryAnalyzer {
 //            SearchTask task = new SearchTask(id, reader.nextTargets(), reader.nextSources(), ignoreDB);
 //            List<QueryBase> job = task.findSqlWfs(analyzer.getAllQueries(), analyzer.getExcludeTbls());
             TaskInfoCollector task = analyzer.nextTask();
+            taskCount++;
 
 //            String queryMostMem = "";
 //            String queryLongest = "";
@@ -593,10 +1195,7 @@ public class QueryAnalyzer {
 //                LOGGER.debug("Query with largest memory: " + queryMostMem);
 //            }
 
-            // If skip empty result
-            if(task.getQueryCount() == 0 && analyzer.isOutputFoundOnly()) {
-                continue;
-            } else if (!task.isAllSrcFound() && analyzer.isAllSrcFoundOnly()) {
+            if (!analyzer.isOutput(task)) {
                 continue;
             }
 
@@ -604,6 +1203,37 @@ public class QueryAnalyzer {
             writer.newLine();
         }
         writer.close();
+        analyzer.close();
+        long endTime = System.currentTimeMillis();
+        LOGGER.info("Searched " + taskCount + " jobs in " + (endTime - fetchTime) + " ms on "
+                + analyzer.getTaskThreads() + " threads, " + String.format("%.1f", taskCount * 1000.0
+                / Math.max(1, endTime - fetchTime)) + " jobs/s. Total " + (endTime - startTime) + " ms.");
+
+    }
 
+    /**
+     * One Impala service on a cluster to search queries from.
+     */
+    public static class ServiceTarget {
+        private String clusterName;
+        private String serviceName;
+
+        public ServiceTarget(String clusterName, String serviceName) {
+            this.clusterName = clusterName;
+            this.serviceName = serviceName;
+        }
+
+        public String getClusterName() {
+            return clusterName;
+        }
+
+        public String getServiceName() {
+            return serviceName;
+        }
+
+        @Override
+        public String toString() {
+            return clusterName + "/" + serviceName;
+        }
     }
 }
@@ -30,16 +30,31 @@ import java.util.regex.Pattern;
 public class QueryBase {
 
     private static Logger LOGGER = LoggerFactory.getLogger(QueryBase.class);
+    // Start time of a query not known.
+    public static final long NO_TIME = Long.MIN_VALUE;
 
     private HashSet<String> target;
     private HashSet<String> source;
     private HashSet<String> cteAlias;
 
+    // Statement text, or null once it is moved to the statement store.
     private String statement;
+    private int statementHandle;
+
+    // Store for statement text of all queries. Null to keep the text on heap.
+    private static volatile StatementStore statementStore;
+    // Store for metrics of all queries. Null to keep a TaskMetrics per query.
+    private static volatile MetricsStore metricsStore;
 //    private double duration;
 //    private double memory;
 //    private double admissionWait;
+    // Metrics of the query, or null once they are moved to the metrics store.
     private TaskMetrics metrics;
+    private int metricsRow = MetricsStore.NO_ID;
+    // Start time in milliseconds since epoch.
+    private long startTime = NO_TIME;
+    // Tables not known as the statement was not parsed, e.g. over the parse budget.
+    private boolean skipped;
 
 
     public QueryBase(String statement, TaskMetrics metrics) throws Exception {
@@ -50,11 +65,69 @@ public class QueryBase {
 
 //        this.duration = duration;
 //        this.memory = memory;
-        this.statement = statement;
-        this.metrics = metrics;
 //        this.admissionWait = admissionWait;
 
         parseImpala(statement.toLowerCase());
+        this.statement = statement;
+        this.metrics = metrics;
+    }
+
+    /**
+     * Create with source / target tables already parsed from the same statement.
+     * @param statement SQL String.
+     * @param metrics Metrics of the query.
+     * @param source Source tables.
+     * @param target Target tables.
+     */
+    public QueryBase(String statement, TaskMetrics metrics, Set<String> source, Set<String> target) {
+        this.source = new HashSet<>(source);
+        this.target = new HashSet<>(target);
+        this.cteAlias = new HashSet<>();
+
+        this.statement = statement;
+        this.metrics = metrics;
+    }
+
+    /**
+     * Move statement text and metrics to the statement and metrics stores if there are. Called once the
+     * query is kept, so queries dropped after parsing do not take space in the stores. Calling it again
+     * does nothing.
+     */
+    public void store() {
+        StatementStore store = statementStore;
+        if (store != null && statement != null) {
+            this.statementHandle = store.put(statement);
+            this.statement = null;
+        }
+        MetricsStore rows = metricsStore;
+        if (rows != null && metrics != null) {
+            this.metricsRow = rows.add(metrics);
+            this.metrics = null;
+        }
+    }
+
+    /**
+     * Set the store for metrics of queries stored after.
+     * @param store Metrics store. Null to keep a TaskMetrics per query.
+     */
+    public static void setMetricsStore(MetricsStore store) {
+        metricsStore = store;
+    }
+
+    /**
+     * Get the store for metrics of queries.
+     * @return Metrics store. Null if metrics are kept per query.
+     */
+    public static MetricsStore getMetricsStore() {
+        return metricsStore;
+    }
+
+    /**
+     * Set the store for statement text of queries stored after.
+     * @param store Statement store. Null to keep the text on heap.
+     */
+    public static void setStatementStore(StatementStore store) {
+        statementStore = store;
     }
 
     /**
@@ -150,21 +223,58 @@ public class QueryBase {
             String tableName = insertStmt.getTargetTableName().toString();
             target.add(tableName);
 
-//            String withPattern = "(.*)insert\\s+(into|overwrite)\\s+" + tableName + ".*";
-            // Extract String before insert.
-            String withString = statement.replaceAll("insert\\s+(into|overwrite)\\s+(table\\s+)?" + tableName + "[\\d\\D]*", " ");
-            String selectString = insertStmt.getQueryStmt().toSql();
+            Set<String> withAliases = LightweightTableExtractor.getLeadingWithAliases(statement);
+            if (withAliases == null) {
+                LOGGER.warn("Unexpected WITH clause. Parsing the query again: " + statement);
+                parseImpalaInsertQuery(statement, insertStmt, tableName);
+                return;
+            }
 
-//            System.out.println(withString + selectString);
-            SqlScanner queryScanner = new SqlScanner(new StringReader(withString + selectString));
-            SqlParser queryParser = new SqlParser(queryScanner);
-            QueryStmt queryStmt = (QueryStmt) queryParser.parse().value;
-            parseImpalaQuery(queryStmt);
+            // Table refs of the insert are the target, the leading WITH clause and the query.
+            List<TableRef> tables = new ArrayList<>();
+            insertStmt.collectTableRefs(tables);
+            boolean targetSkipped = false;
+            for (TableRef table : tables) {
+                String name = getTableName(table);
+                if (!targetSkipped && name.equals(tableName)) {
+                    // Only skip the target itself. It can also be a source.
+                    targetSkipped = true;
+                    continue;
+                }
+                source.add(name);
+            }
+
+            source.removeAll(withAliases);
+            QueryStmt queryStmt = insertStmt.getQueryStmt();
+            if (queryStmt != null && queryStmt.hasWithClause()) {
+                for (View view : queryStmt.getWithClause().getViews()) {
+                    source.remove(view.getFullName());
+                }
+            }
         } else {
             // We do not really care about rest
         }
     }
 
+    /**
+     * Parse the query of INSERT again together with the leading WITH clause.
+     * Only used if the WITH clause can not be read from the statement.
+     * @param statement SQL String.
+     * @param insertStmt Parsed INSERT.
+     * @param tableName Target table.
+     * @throws Exception
+     */
+    private void parseImpalaInsertQuery(String statement, InsertStmt insertStmt, String tableName) throws Exception {
+        // Extract String before insert.
+        String withString = statement.replaceAll("insert\\s+(into|overwrite)\\s+(table\\s+)?" + tableName + "[\\d\\D]*", " ");
+        String selectString = insertStmt.getQueryStmt().toSql();
+
+        SqlScanner queryScanner = new SqlScanner(new StringReader(withString + selectString));
+        SqlParser queryParser = new SqlParser(queryScanner);
+        QueryStmt queryStmt = (QueryStmt) queryParser.parse().value;
+        parseImpalaQuery(queryStmt);
+    }
+
     /**
      * Get table name in the format as dbname.tablename.
      * @param table TableRef instance from Impala FE.
@@ -265,6 +375,9 @@ public class QueryBase {
      * @return SQL statement string.
      */
     public String getStatement() {
+        if (statement == null) {
+            return statementStore.get(statementHandle);
+        }
         return statement;
     }
 
@@ -273,9 +386,53 @@ public class QueryBase {
      * @return TaskMetrics
      */
     public TaskMetrics getMetrics() {
+        if (metrics == null && metricsRow != MetricsStore.NO_ID) {
+            return metricsStore.get(metricsRow);
+        }
         return metrics;
     }
 
+    /**
+     * Get row of the metrics in the metrics store.
+     * @return Row, or MetricsStore.NO_ID if the metrics are not in the store.
+     */
+    public int getMetricsRow() {
+        return metricsRow;
+    }
+
+    /**
+     * Check if the statement was skipped without getting its tables. Such a result is not to be reused for
+     * other statements, as the statement may be parsed next time.
+     * @return True if skipped.
+     */
+    public boolean isSkipped() {
+        return skipped;
+    }
+
+    /**
+     * Mark the statement as skipped without getting its tables.
+     * @param skipped True if skipped.
+     */
+    public void setSkipped(boolean skipped) {
+        this.skipped = skipped;
+    }
+
+    /**
+     * Get start time of the query.
+     * @return Milliseconds since epoch. NO_TIME if not known.
+     */
+    public long getStartTime() {
+        return startTime;
+    }
+
+    /**
+     * Set start time of the query.
+     * @param startTime Milliseconds since epoch. NO_TIME if not known.
+     */
+    public void setStartTime(long startTime) {
+        this.startTime = startTime;
+    }
+
 //    public double getDuration() {
 //        return duration;
 //    }
@@ -0,0 +1,210 @@
+package com.cloudera.sa.cm;
+
+import com.cloudera.api.swagger.client.JSON;
+import com.cloudera.api.swagger.model.ApiImpalaQuery;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Local cache of queries searched from CM.
+ * The search time range is split into fixed time buckets aligned to epoch. Each bucket of one
+ * cluster / service / filter is stored as one gzip file with one query in JSON per line.
+ * Only sealed buckets, which ended long enough ago that CM will not add queries to them, are stored.
+ */
+public class QueryCache {
+    private static final Logger LOGGER = LoggerFactory.getLogger(QueryCache.class);
+
+    private static final String BUCKET_SUFFIX = ".json.gz";
+    private static final String TMP_SUFFIX = ".tmp";
+    private static final String KEY_FILE = "key.txt";
+
+    private File cacheDir;
+    private long bucketMillis;
+    private long sealMillis;
+    private JSON json;
+
+    /**
+     * @param cacheDir Root directory of the cache.
+     * @param bucketMillis Length of one time bucket.
+     * @param sealMillis Bucket is sealed after it ended for this long.
+     * @param json JSON serializer of CM API models.
+     */
+    public QueryCache(String cacheDir, long bucketMillis, long sealMillis, JSON json) {
+        this.cacheDir = new File(cacheDir);
+        this.bucketMillis = bucketMillis;
+        this.sealMillis = sealMillis;
+        this.json = json;
+    }
+
+    /**
+     * Get length of one time bucket.
+     * @return Length of one time bucket in milliseconds.
+     */
+    public long getBucketMillis() {
+        return bucketMillis;
+    }
+
+    /**
+     * Check if no more query will be added to the bucket by CM.
+     * @param bucketEnd End time of the bucket.
+     * @return True if the bucket can be stored.
+     */
+    public boolean isSealed(long bucketEnd) {
+        return bucketEnd + sealMillis < System.currentTimeMillis();
+    }
+
+    /**
+     * Check if the bucket is in the cache.
+     * @param clusterName Cluster name.
+     * @param serviceName Service name.
+     * @param filter Search filter.
+     * @param bucketStart Start time of the bucket.
+     * @return True if found in the cache.
+     */
+    public boolean contains(String clusterName, String serviceName, String filter, long bucketStart) {
+        return getBucketFile(clusterName, serviceName, filter, bucketStart).isFile();
+    }
+
+    /**
+     * Open a cached bucket to read.
+     * @param clusterName Cluster name.
+     * @param serviceName Service name.
+     * @param filter Search filter.
+     * @param bucketStart Start time of the bucket.
+     * @return Reader of the cached bucket.
+     * @throws IOException
+     */
+    public BucketReader openReader(String clusterName, String serviceName, String filter, long bucketStart) throws IOException {
+        return new BucketReader(getBucketFile(clusterName, serviceName, filter, bucketStart));
+    }
+
+    /**
+     * Open a bucket to write. The bucket is only visible after commit.
+     * @param clusterName Cluster name.
+     * @param serviceName Service name.
+     * @param filter Search filter.
+     * @param bucketStart Start time of the bucket.
+     * @return Writer of the bucket.
+     * @throws IOException
+     */
+    public BucketWriter openWriter(String clusterName, String serviceName, String filter, long bucketStart) throws IOException {
+        File dir = getKeyDir(clusterName, serviceName, filter);
+        if (!dir.isDirectory()) {
+            if (!dir.mkdirs() && !dir.isDirectory()) {
+                throw new IOException("Failed to create cache directory " + dir);
+            }
+            // Keep the key in plain text so the cache directory can be checked by hand.
+            Files.write(new File(dir, KEY_FILE).toPath(),
+                    (clusterName + "\n" + serviceName + "\n" + filter + "\n").getBytes(StandardCharsets.UTF_8));
+        }
+        return new BucketWriter(getBucketFile(clusterName, serviceName, filter, bucketStart));
+    }
+
+    private File getBucketFile(String clusterName, String serviceName, String filter, long bucketStart) {
+        return new File(getKeyDir(clusterName, serviceName, filter), bucketStart + "-" + bucketMillis + BUCKET_SUFFIX);
+    }
+
+    private File getKeyDir(String clusterName, String serviceName, String filter) {
+        return new File(cacheDir, QueryAnalyzeUtil.sha1Hex(clusterName + "\n" + serviceName + "\n" + filter));
+    }
+
+    /**
+     * Read queries from a cached bucket.
+     */
+    public class BucketReader {
+        private BufferedReader reader;
+
+        private BucketReader(File file) throws IOException {
+            reader = new BufferedReader(new InputStreamReader(new GZIPInputStream(new FileInputStream(file)),
+                    StandardCharsets.UTF_8));
+        }
+
+        /**
+         * Read next query.
+         * @return Next query. Null if end of bucket.
+         * @throws IOException
+         */
+        public ApiImpalaQuery next() throws IOException {
+            String line = reader.readLine();
+            if (line == null) {
+                return null;
+            }
+            return json.deserialize(line, ApiImpalaQuery.class);
+        }
+
+        /**
+         * Close the bucket.
+         */
+        public void close() {
+            try {
+                reader.close();
+            } catch (IOException e) {
+                LOGGER.error("Error in closing cache bucket", e);
+            }
+        }
+    }
+
+    /**
+     * Write queries into a bucket.
+     */
+    public class BucketWriter {
+        private File file;
+        private File tmpFile;
+        private BufferedWriter writer;
+
+        private BucketWriter(File file) throws IOException {
+            this.file = file;
+            this.tmpFile = new File(file.getPath() + TMP_SUFFIX);
+            this.writer = new BufferedWriter(new OutputStreamWriter(new GZIPOutputStream(new FileOutputStream(tmpFile)),
+                    StandardCharsets.UTF_8));
+        }
+
+        /**
+         * Write a query into the bucket.
+         * @param query Query from CM.
+         * @throws IOException
+         */
+        public void write(ApiImpalaQuery query) throws IOException {
+            writer.write(json.serialize(query));
+            writer.newLine();
+        }
+
+        /**
+         * Finish the bucket and make it visible in the cache.
+         * @throws IOException
+         */
+        public void commit() throws IOException {
+            writer.close();
+            Files.move(tmpFile.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE,
+                    StandardCopyOption.REPLACE_EXISTING);
+        }
+
+        /**
+         * Drop the bucket if the search is not complete.
+         */
+        public void abort() {
+            try {
+                writer.close();
+            } catch (IOException e) {
+                LOGGER.error("Error in closing cache bucket", e);
+            }
+            if (!tmpFile.delete()) {
+                LOGGER.warn("Failed to delete " + tmpFile);
+            }
+        }
+    }
+}
@@ -0,0 +1,138 @@
+package com.cloudera.sa.cm;
+
+import com.cloudera.api.swagger.model.ApiImpalaQueryDetailsResponse;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Get full statements of truncated queries from CM query details.
+ * Called from the detail threads of the query pipeline, which share the pooled HTTP client.
+ */
+public class QueryDetailResolver {
+    private static final Logger LOGGER = LoggerFactory.getLogger(QueryDetailResolver.class);
+
+    private ImpalaQuerySearch client;
+    private String clusterName;
+    private String serviceName;
+
+    // Time and profile size of statement extraction.
+    private AtomicLong extracted = new AtomicLong();
+    private AtomicLong extractNanos = new AtomicLong();
+    private AtomicLong maxExtractNanos = new AtomicLong();
+    private AtomicLong detailChars = new AtomicLong();
+    private AtomicLong maxDetailChars = new AtomicLong();
+
+    public QueryDetailResolver(ImpalaQuerySearch client, String clusterName, String serviceName) {
+        this.client = client;
+        this.clusterName = clusterName;
+        this.serviceName = serviceName;
+    }
+
+    /**
+     * Get the full statement of a query. Thread safe.
+     * @param queryId The ID for detailed Impala query from CM API.
+     * @param metrics Metrics of the query from the search result.
+     * @return Resolved query. Statement is null if failed to get query details.
+     */
+    public ResolvedQuery resolve(String queryId, TaskMetrics metrics) {
+        try {
+            ApiImpalaQueryDetailsResponse detail = client.queryDetailThroughHTTP(clusterName, serviceName, queryId);
+            String statement = extractStatement(detail);
+            return new ResolvedQuery(queryId, statement, metrics);
+        } catch (Exception e) {
+            LOGGER.error("Failed to get query details for id " + queryId, e);
+            return new ResolvedQuery(queryId, null, metrics);
+        }
+    }
+
+    /**
+     * Get the statement from query details and record the time taken.
+     * @param detail Query details from CM.
+     * @return Statement. Null if not found.
+     */
+    private String extractStatement(ApiImpalaQueryDetailsResponse detail) {
+        String details = detail == null ? null : detail.getDetails();
+        long start = System.nanoTime();
+        String statement = QueryAnalyzeUtil.parseStatementFromDetail(details);
+        long nanos = System.nanoTime() - start;
+
+        int chars = details == null ? 0 : details.length();
+        extracted.incrementAndGet();
+        extractNanos.addAndGet(nanos);
+        detailChars.addAndGet(chars);
+        updateMax(maxExtractNanos, nanos);
+        updateMax(maxDetailChars, chars);
+        return statement;
+    }
+
+    private static void updateMax(AtomicLong max, long value) {
+        long current;
+        while (value > (current = max.get()) && !max.compareAndSet(current, value)) {
+            // Retry if another thread updated it.
+        }
+    }
+
+    /**
+     * Report time taken to extract statements from query details.
+     * @return Report string.
+     */
+    public String report() {
+        long count = extracted.get();
+        if (count == 0) {
+            return "Statement extraction: no query details";
+        }
+        return String.format("Statement extraction: %d query details, avg %.1f us, max %.1f us, "
+                        + "avg %d chars, max %d chars", count, extractNanos.get() / 1e3 / count,
+                maxExtractNanos.get() / 1e3, detailChars.get() / count, maxDetailChars.get());
+    }
+
+    /**
+     * Log the time taken to extract statements, if any query details were read.
+     */
+    public void close() {
+        if (extracted.get() > 0) {
+            LOGGER.info(report());
+        }
+    }
+
+    /**
+     * Full statement of a truncated query together with its metrics.
+     */
+    public static class ResolvedQuery {
+        private String queryId;
+        private String statement;
+        private TaskMetrics metrics;
+
+        public ResolvedQuery(String queryId, String statement, TaskMetrics metrics) {
+            this.queryId = queryId;
+            this.statement = statement;
+            this.metrics = metrics;
+        }
+
+        /**
+         * Get the query id.
+         * @return Query id.
+         */
+        public String getQueryId() {
+            return queryId;
+        }
+
+        /**
+         * Get the full statement.
+         * @return Full statement. Null if failed to get query details.
+         */
+        public String getStatement() {
+            return statement;
+        }
+
+        /**
+         * Get the metrics of the query.
+         * @return Query metrics.
+         */
+        public TaskMetrics getMetrics() {
+            return metrics;
+        }
+    }
+}
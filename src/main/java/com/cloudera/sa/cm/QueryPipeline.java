@@ -0,0 +1,521 @@
+package com.cloudera.sa.cm;
+
+import com.cloudera.api.swagger.model.ApiImpalaQuery;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Collect the queries of one CM search in stages connected by bounded queues:
+ * fetch reads queries from the search stream on the calling thread, detail gets full statements of
+ * truncated queries, parse gets the tables of statements, and index adds parsed queries on one thread.
+ * Detail and parse run on their own threads. A stage waits when the queue to the next stage is full, so a
+ * slow stage holds back the stages before it instead of queries piling up in memory.
+ * Queries reach the index in the order they finish, with the sequence number they were read from the stream
+ * in. The target index orders the queries of a table by start time and then that number, so the result
+ * does not depend on the order they finish in.
+ * Throughput, busy time and time blocked on a full queue of each stage, and depth of each queue, are kept
+ * in StageStats and logged while running.
+ */
+public class QueryPipeline {
+    private static final Logger LOGGER = LoggerFactory.getLogger(QueryPipeline.class);
+
+    // Marks the end of a queue. One is put for each thread taking from the queue.
+    private static final PendingQuery END = new PendingQuery(-1, null, null, null, QueryBase.NO_TIME);
+    // How often a waiting stage checks if another stage failed.
+    private static final long WAIT_MILLIS = 100;
+
+    /**
+     * Parse one statement. Called from the parse threads.
+     */
+    public interface StatementParser {
+        QueryBase parse(String statement, TaskMetrics metrics) throws Exception;
+    }
+
+    /**
+     * Add a parsed query with the order it was read from the stream in. Called from the index thread only.
+     */
+    public interface QuerySink {
+        void add(QueryBase query, long sequence);
+    }
+
+    private String service;
+    private QueryDetailResolver resolver;
+    private StatementParser parser;
+    private QuerySink sink;
+    private int detailThreads;
+    private int parseThreads;
+    private long reportMillis;
+
+    private BlockingQueue<PendingQuery> detailQueue;
+    private BlockingQueue<PendingQuery> parseQueue;
+    private BlockingQueue<PendingQuery> indexQueue;
+
+    private StageStats fetch;
+    private StageStats detail;
+    private StageStats parse;
+    private StageStats index;
+    private long startNanos;
+    private AtomicReference<Throwable> failure;
+
+    /**
+     * @param service Service searched, added to the metrics of each query.
+     * @param resolver Resolver of truncated statements. Called from the detail threads.
+     * @param parser Parser of statements. Called from the parse threads.
+     * @param sink Sink of parsed queries.
+     * @param detailThreads Number of threads to get query details.
+     * @param parseThreads Number of threads to parse statements.
+     * @param queueSize Max number of queries waiting in each queue.
+     * @param reportMillis How often to log the stage statistics while running. 0 to only log at the end.
+     * @throws IllegalArgumentException If a thread count or the queue size is below 1.
+     */
+    public QueryPipeline(String service, QueryDetailResolver resolver, StatementParser parser,
+                         QuerySink sink, int detailThreads, int parseThreads, int queueSize, long reportMillis) {
+        // A stage without threads would leave the stages before it waiting forever on its queue.
+        if (detailThreads < 1 || parseThreads < 1 || queueSize < 1) {
+            throw new IllegalArgumentException("Pipeline needs at least 1 detail thread, 1 parse thread and a queue "
+                    + "size of 1, got " + detailThreads + " detail threads, " + parseThreads + " parse threads and "
+                    + "queue size " + queueSize);
+        }
+        this.service = service;
+        this.resolver = resolver;
+        this.parser = parser;
+        this.sink = sink;
+        this.detailThreads = detailThreads;
+        this.parseThreads = parseThreads;
+        this.reportMillis = reportMillis;
+
+        this.detailQueue = new ArrayBlockingQueue<>(queueSize);
+        this.parseQueue = new ArrayBlockingQueue<>(queueSize);
+        this.indexQueue = new ArrayBlockingQueue<>(queueSize);
+        this.fetch = new StageStats("fetch", 1, null);
+        this.detail = new StageStats("detail", detailThreads, detailQueue);
+        this.parse = new StageStats("parse", parseThreads, parseQueue);
+        this.index = new StageStats("index", 1, indexQueue);
+        this.failure = new AtomicReference<>();
+    }
+
+    /**
+     * Collect all queries of the stream. Returns when all queries are added to the sink.
+     * @param stream Query stream from CM search.
+     * @param seenIds Ids of queries already added, to skip them in this search. Null to add all.
+     * @throws Exception First failure of any stage.
+     */
+    public void run(QueryStream stream, Set<String> seenIds) throws Exception {
+        startNanos = System.nanoTime();
+        ExecutorService executor = Executors.newFixedThreadPool(detailThreads + parseThreads + 1);
+        ScheduledExecutorService reporter = null;
+        if (reportMillis > 0) {
+            reporter = Executors.newSingleThreadScheduledExecutor();
+            reporter.scheduleAtFixedRate(new Runnable() {
+                @Override
+                public void run() {
+                    LOGGER.info(report());
+                }
+            }, reportMillis, reportMillis, TimeUnit.MILLISECONDS);
+        }
+        try {
+            List<Future<Void>> futures = new ArrayList<>();
+            final AtomicInteger detailRunning = new AtomicInteger(detailThreads);
+            for (int i = 0; i < detailThreads; i++) {
+                futures.add(executor.submit(new Callable<Void>() {
+                    @Override
+                    public Void call() throws Exception {
+                        try {
+                            runDetail();
+                        } catch (Throwable e) {
+                            failure.compareAndSet(null, e);
+                            throw e;
+                        } finally {
+                            // The last detail thread to end ends parse.
+                            if (detailRunning.decrementAndGet() == 0) {
+                                end(detail, parseQueue, parseThreads);
+                            }
+                        }
+                        return null;
+                    }
+                }));
+            }
+            final AtomicInteger parseRunning = new AtomicInteger(parseThreads);
+            for (int i = 0; i < parseThreads; i++) {
+                futures.add(executor.submit(new Callable<Void>() {
+                    @Override
+                    public Void call() throws Exception {
+                        try {
+                            runParse();
+                        } catch (Throwable e) {
+                            failure.compareAndSet(null, e);
+                            throw e;
+                        } finally {
+                            // The last parse thread to end ends index.
+                            if (parseRunning.decrementAndGet() == 0) {
+                                end(parse, indexQueue, 1);
+                            }
+                        }
+                        return null;
+                    }
+                }));
+            }
+            futures.add(executor.submit(new Callable<Void>() {
+                @Override
+                public Void call() throws Exception {
+                    try {
+                        runIndex();
+                    } catch (Throwable e) {
+                        failure.compareAndSet(null, e);
+                        throw e;
+                    }
+                    return null;
+                }
+            }));
+
+            try {
+                runFetch(stream, seenIds);
+            } catch (Throwable e) {
+                failure.compareAndSet(null, e);
+                throwFailure(e);
+            } finally {
+                end(fetch, detailQueue, detailThreads);
+            }
+            for (Future<Void> future : futures) {
+                try {
+                    future.get();
+                } catch (ExecutionException e) {
+                    throwFailure(e.getCause());
+                }
+            }
+        } finally {
+            executor.shutdownNow();
+            if (reporter != null) {
+                reporter.shutdownNow();
+            }
+        }
+        LOGGER.info(report());
+    }
+
+    /**
+     * Read queries from the stream, and send truncated ones to detail and the others to parse.
+     */
+    private void runFetch(QueryStream stream, Set<String> seenIds) throws Exception {
+        // Truncated queries sent to detail, as the same query may be returned again.
+        Set<String> detailIds = new HashSet<>();
+        long busyStart = System.nanoTime();
+        long sequence = 0;
+        ApiImpalaQuery query;
+        while ((query = stream.nextQuery()) != null) {
+            if (seenIds != null && query.getQueryId() != null && !seenIds.add(query.getQueryId())) {
+                continue;
+            }
+            fetch.taken.incrementAndGet();
+
+            TaskMetrics metrics = QueryAnalyzeUtil.collectMetricsFromQueryResponse(query);
+            metrics.addService(service);
+            long startTime = QueryAnalyzeUtil.parseStartTime(query);
+            String statement = query.getStatement();
+
+            if (LOGGER.isDebugEnabled()) {
+                LOGGER.debug("Query info: memory=" + metrics.getMaxMemoryGb() + "GB, duration=" + metrics.getDuration() + "s");
+            }
+
+            // If the SQL too long, get it from query details.
+            if (statement.endsWith("...")) {
+                if (!detailIds.add(query.getQueryId())) {
+                    continue;
+                }
+                LOGGER.info("Query too long for cm. Checking details for query " + query.getQueryId());
+                fetch.busyNanos.addAndGet(System.nanoTime() - busyStart);
+                put(fetch, detailQueue, new PendingQuery(sequence++, query.getQueryId(), null, metrics, startTime));
+            } else {
+                fetch.busyNanos.addAndGet(System.nanoTime() - busyStart);
+                put(fetch, parseQueue, new PendingQuery(sequence++, query.getQueryId(), statement, metrics,
+                        startTime));
+            }
+            busyStart = System.nanoTime();
+        }
+        fetch.busyNanos.addAndGet(System.nanoTime() - busyStart);
+        if (!stream.isComplete()) {
+            LOGGER.error("Search of service " + service + " did not finish because of errors or scan limits. "
+                    + "Some queries may be missing.");
+        }
+    }
+
+    /**
+     * Get full statements and send them to parse.
+     */
+    private void runDetail() throws Exception {
+        PendingQuery pending;
+        while ((pending = take(detail, detailQueue)) != END) {
+            long busyStart = System.nanoTime();
+            QueryDetailResolver.ResolvedQuery resolved = resolver.resolve(pending.queryId, pending.metrics);
+            detail.busyNanos.addAndGet(System.nanoTime() - busyStart);
+            if (resolved.getStatement() == null) {
+                LOGGER.error("Failed to get query details for id " + pending.queryId);
+                continue;
+            }
+            put(detail, parseQueue, new PendingQuery(pending.sequence, pending.queryId, resolved.getStatement(),
+                    pending.metrics, pending.startTime));
+        }
+    }
+
+    /**
+     * Parse statements and send the queries to index.
+     */
+    private void runParse() throws Exception {
+        PendingQuery pending;
+        while ((pending = take(parse, parseQueue)) != END) {
+            long busyStart = System.nanoTime();
+            QueryBase query;
+            try {
+                query = parser.parse(pending.statement, pending.metrics);
+            } catch (Exception e) {
+                LOGGER.error("Failed to parse SQL: " + pending.statement, e);
+                query = null;
+            }
+            parse.busyNanos.addAndGet(System.nanoTime() - busyStart);
+            if (query == null) {
+                continue;
+            }
+            query.setStartTime(pending.startTime);
+            pending.query = query;
+            put(parse, indexQueue, pending);
+        }
+    }
+
+    /**
+     * Add parsed queries to the sink.
+     */
+    private void runIndex() throws Exception {
+        PendingQuery pending;
+        while ((pending = take(index, indexQueue)) != END) {
+            long busyStart = System.nanoTime();
+            sink.add(pending.query, pending.sequence);
+            index.busyNanos.addAndGet(System.nanoTime() - busyStart);
+        }
+    }
+
+    /**
+     * Put the query to the queue of the next stage. Wait while the queue is full.
+     * @param from Stage putting the query.
+     * @param queue Queue of the next stage.
+     * @param query Query.
+     * @throws Exception Failure of another stage while waiting.
+     */
+    private void put(StageStats from, BlockingQueue<PendingQuery> queue, PendingQuery query) throws Exception {
+        long start = System.nanoTime();
+        while (!queue.offer(query, WAIT_MILLIS, TimeUnit.MILLISECONDS)) {
+            checkFailure();
+        }
+        from.blockedNanos.addAndGet(System.nanoTime() - start);
+        from.sent.incrementAndGet();
+    }
+
+    /**
+     * Put END for each thread taking from the queue, when the stage ends or fails. Gives up while the queue
+     * is full once any stage failed, as the next stage then stops on the failure instead.
+     * @param from Stage that ended.
+     * @param queue Queue of the next stage.
+     * @param count Number of threads of the next stage.
+     * @throws InterruptedException
+     */
+    private void end(StageStats from, BlockingQueue<PendingQuery> queue, int count) throws InterruptedException {
+        long start = System.nanoTime();
+        for (int i = 0; i < count; i++) {
+            while (!queue.offer(END, WAIT_MILLIS, TimeUnit.MILLISECONDS)) {
+                if (failure.get() != null) {
+                    return;
+                }
+            }
+        }
+        from.blockedNanos.addAndGet(System.nanoTime() - start);
+    }
+
+    /**
+     * Throw the failure of the stage that failed first, not of the ones stopped by it.
+     * @param cause Failure seen by the caller, thrown if no stage recorded one.
+     * @throws Exception The first failure, or an Error as is.
+     */
+    private void throwFailure(Throwable cause) throws Exception {
+        Throwable first = failure.get() != null ? failure.get() : cause;
+        if (first instanceof Error) {
+            throw (Error) first;
+        }
+        throw first instanceof Exception ? (Exception) first : new ExecutionException(first);
+    }
+
+    /**
+     * Take the next query of the stage. Wait while the queue is empty.
+     * @param stage Stage taking the query.
+     * @param queue Queue of the stage.
+     * @return Query, or END.
+     * @throws Exception Failure of another stage while waiting.
+     */
+    private PendingQuery take(StageStats stage, BlockingQueue<PendingQuery> queue) throws Exception {
+        stage.updateMaxDepth();
+        PendingQuery query;
+        while ((query = queue.poll(WAIT_MILLIS, TimeUnit.MILLISECONDS)) == null) {
+            checkFailure();
+        }
+        if (query != END) {
+            stage.taken.incrementAndGet();
+        }
+        return query;
+    }
+
+    private void checkFailure() throws Exception {
+        Throwable cause = failure.get();
+        if (cause != null) {
+            throw new IllegalStateException("Another pipeline stage failed", cause);
+        }
+    }
+
+    /**
+     * Get statistics of all stages.
+     * @return Stage statistics from fetch to index.
+     */
+    public List<StageStats> getStages() {
+        return Arrays.asList(fetch, detail, parse, index);
+    }
+
+    /**
+     * Report throughput and queue depth of each stage.
+     * @return Report string.
+     */
+    public String report() {
+        long elapsed = Math.max(1, System.nanoTime() - startNanos);
+        StringBuilder report = new StringBuilder("Pipeline of ").append(service).append(" after ")
+                .append(elapsed / 1000000).append(" ms:");
+        for (StageStats stage : getStages()) {
+            report.append(' ').append(stage.report(elapsed)).append(';');
+        }
+        return report.toString();
+    }
+
+    /**
+     * A query on its way through the stages.
+     */
+    private static class PendingQuery {
+        // Order the query was read from the stream in.
+        private long sequence;
+        private String queryId;
+        private String statement;
+        private TaskMetrics metrics;
+        private long startTime;
+        private QueryBase query;
+
+        private PendingQuery(long sequence, String queryId, String statement, TaskMetrics metrics, long startTime) {
+            this.sequence = sequence;
+            this.queryId = queryId;
+            this.statement = statement;
+            this.metrics = metrics;
+            this.startTime = startTime;
+        }
+    }
+
+    /**
+     * Counters of one stage. Updated by the threads of the stage and read by anyone.
+     */
+    public static class StageStats {
+        private String name;
+        private int threads;
+        private BlockingQueue<PendingQuery> queue;
+        private AtomicLong taken = new AtomicLong();
+        private AtomicLong sent = new AtomicLong();
+        private AtomicLong busyNanos = new AtomicLong();
+        private AtomicLong blockedNanos = new AtomicLong();
+        private AtomicInteger maxDepth = new AtomicInteger();
+
+        private StageStats(String name, int threads, BlockingQueue<PendingQuery> queue) {
+            this.name = name;
+            this.threads = threads;
+            this.queue = queue;
+        }
+
+        private void updateMaxDepth() {
+            int depth = queue.size();
+            int current;
+            while (depth > (current = maxDepth.get()) && !maxDepth.compareAndSet(current, depth)) {
+                // Retry if another thread updated it.
+            }
+        }
+
+        /**
+         * Get stage name.
+         * @return Name.
+         */
+        public String getName() {
+            return name;
+        }
+
+        /**
+         * Get number of queries the stage took in.
+         * @return Number of queries.
+         */
+        public long getTaken() {
+            return taken.get();
+        }
+
+        /**
+         * Get number of queries the stage sent to the next stage.
+         * @return Number of queries.
+         */
+        public long getSent() {
+            return sent.get();
+        }
+
+        /**
+         * Get time spent working, summed over the threads of the stage.
+         * @return Nanoseconds.
+         */
+        public long getBusyNanos() {
+            return busyNanos.get();
+        }
+
+        /**
+         * Get time spent waiting for room in the queue of the next stage, summed over the threads.
+         * @return Nanoseconds.
+         */
+        public long getBlockedNanos() {
+            return blockedNanos.get();
+        }
+
+        /**
+         * Get number of queries waiting for the stage.
+         * @return Queue depth. 0 for fetch, which reads from the search stream.
+         */
+        public int getDepth() {
+            return queue == null ? 0 : queue.size();
+        }
+
+        /**
+         * Get max number of queries seen waiting for the stage.
+         * @return Max queue depth.
+         */
+        public int getMaxDepth() {
+            return maxDepth.get();
+        }
+
+        private String report(long elapsedNanos) {
+            double capacity = (double) elapsedNanos * threads;
+            return String.format("%s %d threads, %d in %.1f/s, busy %.0f%%, blocked %.0f%%, queue %d max %d", name,
+                    threads, taken.get(), taken.get() * 1e9 / elapsedNanos, busyNanos.get() * 100 / capacity,
+                    blockedNanos.get() * 100 / capacity, getDepth(), getMaxDepth());
+        }
+    }
+}
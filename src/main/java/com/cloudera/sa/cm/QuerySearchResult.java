@@ -1,7 +1,5 @@
 package com.cloudera.sa.cm;
 
-import com.cloudera.api.swagger.ImpalaQueriesResourceApi;
-import com.cloudera.api.swagger.client.ApiClient;
 import com.cloudera.api.swagger.client.ApiException;
 import com.cloudera.api.swagger.model.ApiImpalaQuery;
 import com.cloudera.api.swagger.model.ApiImpalaQueryResponse;
@@ -9,19 +7,23 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.util.Iterator;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
 
 /**
  * Get all search result from CM.
  */
-public class QuerySearchResult {
+public class QuerySearchResult implements QueryStream {
     private static Logger LOGGER = LoggerFactory.getLogger(QuerySearchResult.class);
 
     private static final int QUERY_BATCH = 1000;
     // Used to check if there's more from CM.
     // It means CM has more queries and please use the time in "Last end time" for to=xxx in next search.
     private static final String QUERY_LIMIT_KEYWORD = "Impala query scan limit reached. Last end time considered is";
+    // Marker put into the prefetch buffer after the last page.
+    private static final ApiImpalaQueryResponse END_OF_PAGES = new ApiImpalaQueryResponse();
 
-    private ImpalaQueriesResourceApi searchApi;
+    private ImpalaQuerySearch search;
     private ApiImpalaQueryResponse currentResult;
     private Iterator<ApiImpalaQuery> currentItr;
     private String clusterName;
@@ -32,9 +34,44 @@ public class QuerySearchResult {
     private String to;
     private int offset;
 
-    public QuerySearchResult (ApiClient cmClient, String clusterName, String serviceName, String filter,
+    // Pages searched ahead by the prefetch thread. Null if prefetch is disabled.
+    private BlockingQueue<ApiImpalaQueryResponse> prefetchedPages;
+    private Thread prefetcher;
+    // Iterator of the page currently consumed when prefetch is enabled.
+    private Iterator<ApiImpalaQuery> consumingItr;
+    private boolean noMorePages;
+    // Set if any search to CM failed, so the result is not complete.
+    private volatile boolean failed;
+    // Continue searching before the last end time if scan limit is reached.
+    private boolean followScanLimit;
+    // Last end time reported by the latest scan limit warning. Null if scan limit not reached.
+    private volatile String scanLimitEnd;
+
+    public QuerySearchResult (ImpalaQuerySearch search, String clusterName, String serviceName, String filter,
                               String from, String to) throws ApiException {
-        this.searchApi = new ImpalaQueriesResourceApi(cmClient);
+        this(search, clusterName, serviceName, filter, from, to, 0);
+    }
+
+    /**
+     * Search with pages prefetched.
+     * A background thread searches the next pages from CM while the current page is being consumed.
+     * At most prefetchPages pages are kept in buffer.
+     * @param prefetchPages Number of pages to search ahead. 0 to disable prefetch.
+     */
+    public QuerySearchResult (ImpalaQuerySearch search, String clusterName, String serviceName, String filter,
+                              String from, String to, int prefetchPages) throws ApiException {
+        this(search, clusterName, serviceName, filter, from, to, prefetchPages, true);
+    }
+
+    /**
+     * Search with pages prefetched, optionally only within the first scan of CM.
+     * @param prefetchPages Number of pages to search ahead. 0 to disable prefetch.
+     * @param followScanLimit If false, stop when scan limit is reached instead of searching before the last
+     *                        end time. Check getScanLimitEnd() for where the search stopped.
+     */
+    public QuerySearchResult (ImpalaQuerySearch search, String clusterName, String serviceName, String filter,
+                              String from, String to, int prefetchPages, boolean followScanLimit) throws ApiException {
+        this.search = search;
         this.clusterName = clusterName;
         this.serviceName = serviceName;
         this.filter = filter;
@@ -43,8 +80,83 @@ public class QuerySearchResult {
         this.to = to;
 
         this.offset = 0;
+        this.followScanLimit = followScanLimit;
 
         doSearch();
+
+        if (prefetchPages > 0) {
+            startPrefetch(prefetchPages);
+        }
+    }
+
+    /**
+     * Start the thread to search pages ahead.
+     * After that, only the prefetch thread moves offset / nextEnd of the search.
+     * @param prefetchPages Number of pages to keep in buffer.
+     */
+    private void startPrefetch(int prefetchPages) {
+        prefetchedPages = new ArrayBlockingQueue<>(prefetchPages);
+        noMorePages = false;
+        prefetcher = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                prefetch();
+            }
+        }, "query-prefetch-" + from + "-" + to);
+        prefetcher.setDaemon(true);
+        prefetcher.start();
+    }
+
+    /**
+     * Search all pages and put them in the buffer. Block if the buffer is full.
+     */
+    private void prefetch() {
+        try {
+            boolean hasMore = currentItr != null || searchNextTime();
+            while (hasMore) {
+                prefetchedPages.put(currentResult);
+                hasMore = searchNext();
+            }
+        } catch (InterruptedException e) {
+            // Closed by the consumer.
+            Thread.currentThread().interrupt();
+        } catch (Throwable e) {
+            LOGGER.error("Failed to prefetch search from CM.", e);
+            failed = true;
+        } finally {
+            // Always end the pages, so the consumer does not wait for them forever.
+            try {
+                prefetchedPages.put(END_OF_PAGES);
+            } catch (InterruptedException e) {
+                // Closed by the consumer.
+            }
+        }
+    }
+
+    /**
+     * Move to next prefetched page if current one is consumed.
+     * @return True if there is a query to consume.
+     * @throws ApiException
+     */
+    private boolean nextPrefetchedPage() throws ApiException {
+        while (consumingItr == null || !consumingItr.hasNext()) {
+            if (noMorePages) {
+                return false;
+            }
+            ApiImpalaQueryResponse page;
+            try {
+                page = prefetchedPages.take();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new ApiException(e);
+            }
+            if (page == END_OF_PAGES) {
+                noMorePages = true;
+                return false;
+            }
+            consumingItr = page.getQueries().iterator();
+        }
+        return true;
     }
 
     /**
@@ -53,8 +165,12 @@ public class QuerySearchResult {
      * @throws ApiException
      */
     public ApiImpalaQuery nextQuery() throws ApiException {
-        if(currentItr == null) {
-            searchNextTime();
+        if(prefetchedPages != null) {
+            return nextPrefetchedPage() ? consumingItr.next() : null;
+        }
+        if(currentItr == null && !searchNextTime()) {
+            // Nothing found in the whole time range.
+            return null;
         }
         if(currentItr.hasNext()) {
             return currentItr.next();
@@ -74,7 +190,10 @@ public class QuerySearchResult {
      * @throws ApiException
      */
     public boolean hasNextQuery() throws ApiException {
-        if (searchApi != null && currentResult != null && currentItr != null) {
+        if (prefetchedPages != null) {
+            return nextPrefetchedPage();
+        }
+        if (search != null && currentResult != null && currentItr != null) {
             if (currentItr.hasNext()) {
                 // If we have more queries in current result.
                 return true;
@@ -92,7 +211,7 @@ public class QuerySearchResult {
      * @throws ApiException
      */
     public boolean doSearch() throws ApiException {
-        currentResult = searchApi.getImpalaQueries(clusterName, serviceName, filter, from, QUERY_BATCH, offset, nextEnd);
+        currentResult = search.queryRaw(clusterName, serviceName, filter, from, nextEnd, QUERY_BATCH, offset);
         if (currentResult.getQueries().size() != 0) {
             currentItr = currentResult.getQueries().iterator();
             return true;
@@ -126,11 +245,12 @@ public class QuerySearchResult {
             if (warning.contains(QUERY_LIMIT_KEYWORD)) {
                 LOGGER.info(warning);
                 nextEnd = warning.replace(QUERY_LIMIT_KEYWORD, "").trim();
+                scanLimitEnd = nextEnd;
             }
         }
 
         // If from=to
-        if (nextEnd.equals(from)) {
+        if (nextEnd.equals(from) || !followScanLimit) {
             return false;
         }
 
@@ -163,7 +283,33 @@ public class QuerySearchResult {
             }
         } catch (ApiException e) {
             LOGGER.error("Failed to get next search to CM.", e);
+            failed = true;
             return false;
         }
     }
+
+    /**
+     * Get the last end time reported when CM scan limit is reached.
+     * @return ISO8601 format time. Null if scan limit never reached.
+     */
+    public String getScanLimitEnd() {
+        return scanLimitEnd;
+    }
+
+    /**
+     * Check if all searches to CM succeeded.
+     * @return True if no result is lost because of errors.
+     */
+    public boolean isComplete() {
+        return !failed;
+    }
+
+    /**
+     * Stop the prefetch thread if any.
+     */
+    public void close() {
+        if (prefetcher != null) {
+            prefetcher.interrupt();
+        }
+    }
 }
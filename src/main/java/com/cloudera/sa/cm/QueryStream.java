@@ -0,0 +1,29 @@
+package com.cloudera.sa.cm;
+
+import com.cloudera.api.swagger.client.ApiException;
+import com.cloudera.api.swagger.model.ApiImpalaQuery;
+
+/**
+ * Interface of query stream returned from a CM search.
+ */
+public interface QueryStream {
+
+    /**
+     * Get next query from the search.
+     * @return Next query. Null if no more query.
+     * @throws ApiException
+     */
+    public ApiImpalaQuery nextQuery() throws ApiException;
+
+    /**
+     * Check if the search finished without errors.
+     * A search to CM may fail in the middle and the stream just ends early.
+     * @return True if no result is lost because of errors.
+     */
+    public boolean isComplete();
+
+    /**
+     * Release everything held by the stream, like background threads.
+     */
+    public void close();
+}
@@ -0,0 +1,87 @@
+package com.cloudera.sa.cm;
+
+import com.cloudera.api.swagger.client.ApiException;
+import com.cloudera.api.swagger.model.ApiImpalaQueryDetailsResponse;
+import com.cloudera.api.swagger.model.ApiImpalaQueryResponse;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+
+/**
+ * Search CM as usual and record every response into a local directory, so the run can be replayed
+ * later by ReplayImpalaQuerySearch without CM.
+ * Search pages, including their scan limit warnings, are stored under pages/ named by the hash of the
+ * search parameters. Query details are stored under details/ named by query id.
+ */
+public class RecordingImpalaQuerySearch extends ImpalaQuerySearch {
+    private static final Logger LOGGER = LoggerFactory.getLogger(RecordingImpalaQuerySearch.class);
+
+    public static final String PAGE_DIR = "pages";
+    public static final String DETAIL_DIR = "details";
+
+    private File recordDir;
+
+    public RecordingImpalaQuerySearch(String host, Integer port, String version, String username, String password,
+                                      Boolean isSSLEnabled, String pemPath, String recordDir) {
+        super(host, port, version, username, password, isSSLEnabled, pemPath);
+        this.recordDir = new File(recordDir);
+        new File(this.recordDir, PAGE_DIR).mkdirs();
+        new File(this.recordDir, DETAIL_DIR).mkdirs();
+    }
+
+    /**
+     * Search CM and record the response.
+     */
+    @Override
+    public ApiImpalaQueryResponse queryRaw(String clusterName, String serviceName, String filter, String from,
+                                           String to, int limit, int offset) throws ApiException {
+        ApiImpalaQueryResponse result = super.queryRaw(clusterName, serviceName, filter, from, to, limit, offset);
+        record(getPageFile(recordDir, clusterName, serviceName, filter, from, to, limit, offset), result);
+        return result;
+    }
+
+    /**
+     * Get query details from CM and record the response.
+     */
+    @Override
+    public ApiImpalaQueryDetailsResponse queryDetailThroughHTTP(String clusterName, String serviceName, String queryId) {
+        ApiImpalaQueryDetailsResponse result = super.queryDetailThroughHTTP(clusterName, serviceName, queryId);
+        if (result != null) {
+            record(getDetailFile(recordDir, clusterName, serviceName, queryId), result);
+        }
+        return result;
+    }
+
+    private void record(File file, Object response) {
+        try {
+            Files.write(file.toPath(), getJson().serialize(response).getBytes(StandardCharsets.UTF_8));
+        } catch (IOException e) {
+            LOGGER.error("Failed to record response to " + file, e);
+        }
+    }
+
+    /**
+     * Get file of a recorded search page.
+     * @param recordDir Root directory of the recording.
+     * @return File of the page.
+     */
+    public static File getPageFile(File recordDir, String clusterName, String serviceName, String filter, String from,
+                                   String to, int limit, int offset) {
+        String key = clusterName + "\n" + serviceName + "\n" + filter + "\n" + from + "\n" + to + "\n" + limit + "\n" + offset;
+        return new File(new File(recordDir, PAGE_DIR), QueryAnalyzeUtil.sha1Hex(key) + ".json");
+    }
+
+    /**
+     * Get file of recorded query details.
+     * @param recordDir Root directory of the recording.
+     * @return File of the query details.
+     */
+    public static File getDetailFile(File recordDir, String clusterName, String serviceName, String queryId) {
+        String key = clusterName + "\n" + serviceName + "\n" + queryId;
+        return new File(new File(recordDir, DETAIL_DIR), QueryAnalyzeUtil.sha1Hex(key) + ".json");
+    }
+}
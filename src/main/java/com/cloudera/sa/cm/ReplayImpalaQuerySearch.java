@@ -0,0 +1,99 @@
+package com.cloudera.sa.cm;
+
+import com.cloudera.api.swagger.client.ApiException;
+import com.cloudera.api.swagger.model.ApiImpalaQuery;
+import com.cloudera.api.swagger.model.ApiImpalaQueryDetailsResponse;
+import com.cloudera.api.swagger.model.ApiImpalaQueryResponse;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Serve responses recorded by RecordingImpalaQuerySearch instead of searching CM.
+ * Each response is delayed by a configurable latency to mimic the network and CM.
+ * The same configuration as the recorded run must be used, so the same searches are made.
+ */
+public class ReplayImpalaQuerySearch extends ImpalaQuerySearch {
+    private static final Logger LOGGER = LoggerFactory.getLogger(ReplayImpalaQuerySearch.class);
+
+    private File replayDir;
+    private long latencyMillis;
+    private AtomicInteger missing;
+
+    public ReplayImpalaQuerySearch(String host, Integer port, String version, String username, String password,
+                                   Boolean isSSLEnabled, String pemPath, String replayDir, long latencyMillis) {
+        super(host, port, version, username, password, isSSLEnabled, pemPath);
+        this.replayDir = new File(replayDir);
+        this.latencyMillis = latencyMillis;
+        this.missing = new AtomicInteger(0);
+    }
+
+    /**
+     * Get recorded search page. Empty page if not recorded.
+     */
+    @Override
+    public ApiImpalaQueryResponse queryRaw(String clusterName, String serviceName, String filter, String from,
+                                           String to, int limit, int offset) throws ApiException {
+        File file = RecordingImpalaQuerySearch.getPageFile(replayDir, clusterName, serviceName, filter, from, to, limit, offset);
+        ApiImpalaQueryResponse result = replay(file, ApiImpalaQueryResponse.class);
+        if (result == null) {
+            LOGGER.warn("No recorded page for " + from + " - " + to + ", offset=" + offset + ". Using empty page.");
+            result = new ApiImpalaQueryResponse();
+            result.setQueries(new ArrayList<ApiImpalaQuery>());
+            result.setWarnings(new ArrayList<String>());
+        }
+        return result;
+    }
+
+    /**
+     * Get recorded query details. Null if not recorded.
+     */
+    @Override
+    public ApiImpalaQueryDetailsResponse queryDetailThroughHTTP(String clusterName, String serviceName, String queryId) {
+        File file = RecordingImpalaQuerySearch.getDetailFile(replayDir, clusterName, serviceName, queryId);
+        ApiImpalaQueryDetailsResponse result = replay(file, ApiImpalaQueryDetailsResponse.class);
+        if (result == null) {
+            LOGGER.warn("No recorded details for query " + queryId);
+        }
+        return result;
+    }
+
+    private <T> T replay(File file, Class<T> type) {
+        if (latencyMillis > 0) {
+            try {
+                Thread.sleep(latencyMillis);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        if (!file.isFile()) {
+            missing.incrementAndGet();
+            return null;
+        }
+        try {
+            String content = new String(Files.readAllBytes(file.toPath()), StandardCharsets.UTF_8);
+            return getJson().deserialize(content, type);
+        } catch (IOException e) {
+            LOGGER.error("Failed to read recorded response " + file, e);
+            return null;
+        }
+    }
+
+    /**
+     * Report responses not found in the recording.
+     */
+    @Override
+    public void close() {
+        if (missing.get() > 0) {
+            LOGGER.warn(missing.get() + " responses not found in recording " + replayDir
+                    + ". Check the configuration is the same as the recorded run.");
+        }
+        super.close();
+    }
+}
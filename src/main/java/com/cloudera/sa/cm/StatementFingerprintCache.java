@@ -0,0 +1,268 @@
+package com.cloudera.sa.cm;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.StringJoiner;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Cache of source / target tables parsed from SQL, keyed by the statement fingerprint.
+ * The fingerprint is the statement in lower case with literals, comments and extra whitespace removed, so
+ * runs of the same scheduled statement with different dates or ids share one parse.
+ * The cache keeps the least recently used entries up to its size and can be saved into a file for next run.
+ */
+public class StatementFingerprintCache {
+    private static final Logger LOGGER = LoggerFactory.getLogger(StatementFingerprintCache.class);
+
+    private static final String FIELD_DELIMITER = "\t";
+    private static final String TABLE_DELIMITER = ",";
+
+    private final int maxEntries;
+    private final LinkedHashMap<String, Tables> entries;
+
+    private long hits;
+    private long misses;
+    private long evictions;
+
+    public StatementFingerprintCache(final int maxEntries) {
+        this.maxEntries = maxEntries;
+        this.entries = new LinkedHashMap<String, Tables>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Tables> eldest) {
+                if (size() > StatementFingerprintCache.this.maxEntries) {
+                    evictions += 1;
+                    return true;
+                }
+                return false;
+            }
+        };
+    }
+
+    /**
+     * Get fingerprint of the statement. String and numeric literals are replaced by ?, comments are
+     * removed, whitespace is collapsed into one space and the rest is in lower case.
+     * @param statement SQL statement.
+     * @return Fingerprint of the statement.
+     */
+    public static String fingerprint(String statement) {
+        StringBuilder result = new StringBuilder(statement.length());
+        int length = statement.length();
+        int i = 0;
+        while (i < length) {
+            char c = statement.charAt(i);
+            if (c == '\'' || c == '"') {
+                i = skipQuoted(statement, i, c);
+                result.append('?');
+            } else if (c == '-' && i + 1 < length && statement.charAt(i + 1) == '-') {
+                while (i < length && statement.charAt(i) != '\n') {
+                    i++;
+                }
+                appendSpace(result);
+            } else if (c == '/' && i + 1 < length && statement.charAt(i + 1) == '*') {
+                int end = statement.indexOf("*/", i + 2);
+                i = end < 0 ? length : end + 2;
+                appendSpace(result);
+            } else if (c == '`') {
+                int end = statement.indexOf('`', i + 1);
+                end = end < 0 ? length : end + 1;
+                result.append(statement.substring(i, end).toLowerCase());
+                i = end;
+            } else if (Character.isWhitespace(c)) {
+                appendSpace(result);
+                i++;
+            } else if (Character.isDigit(c) && (i == 0 || !isIdentifierChar(statement.charAt(i - 1)))) {
+                while (i < length && (Character.isLetterOrDigit(statement.charAt(i)) || statement.charAt(i) == '.')) {
+                    i++;
+                }
+                result.append('?');
+            } else {
+                result.append(Character.toLowerCase(c));
+                i++;
+            }
+        }
+        int end = result.length();
+        if (end > 0 && result.charAt(end - 1) == ' ') {
+            result.setLength(end - 1);
+        }
+        return result.length() > 0 && result.charAt(0) == ' ' ? result.substring(1) : result.toString();
+    }
+
+    private static int skipQuoted(String statement, int start, char quote) {
+        int i = start + 1;
+        while (i < statement.length()) {
+            char c = statement.charAt(i);
+            if (c == '\\') {
+                i += 2;
+            } else if (c == quote) {
+                // Doubled quote is an escaped quote.
+                if (i + 1 < statement.length() && statement.charAt(i + 1) == quote) {
+                    i += 2;
+                } else {
+                    return i + 1;
+                }
+            } else {
+                i++;
+            }
+        }
+        return statement.length();
+    }
+
+    private static void appendSpace(StringBuilder result) {
+        if (result.length() > 0 && result.charAt(result.length() - 1) != ' ') {
+            result.append(' ');
+        }
+    }
+
+    private static boolean isIdentifierChar(char c) {
+        return Character.isLetterOrDigit(c) || c == '_' || c == '.' || c == '$';
+    }
+
+    /**
+     * Get tables cached for the fingerprint.
+     * @param fingerprint Statement fingerprint.
+     * @return Cached tables. Null if not cached.
+     */
+    public synchronized Tables get(String fingerprint) {
+        Tables tables = entries.get(fingerprint);
+        if (tables == null) {
+            misses += 1;
+        } else {
+            hits += 1;
+        }
+        return tables;
+    }
+
+    /**
+     * Cache tables parsed from a statement.
+     * @param fingerprint Statement fingerprint.
+     * @param source Source tables.
+     * @param target Target tables.
+     */
+    public synchronized void put(String fingerprint, Set<String> source, Set<String> target) {
+        entries.put(fingerprint, new Tables(source, target));
+    }
+
+    /**
+     * Get number of cached fingerprints.
+     * @return Number of cached fingerprints.
+     */
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    /**
+     * Report cache size and hit rate.
+     * @return Report string.
+     */
+    public synchronized String report() {
+        long total = hits + misses;
+        return "Fingerprint cache: " + entries.size() + " entries, " + hits + " hits, " + misses + " misses, "
+                + evictions + " evictions, hit rate "
+                + String.format("%.1f%%", total == 0 ? 0.0 : hits * 100.0 / total);
+    }
+
+    /**
+     * Load cached entries saved by an earlier run. Nothing is loaded if the file does not exist.
+     * @param file Cache file.
+     * @throws IOException
+     */
+    public synchronized void load(File file) throws IOException {
+        if (!file.isFile()) {
+            return;
+        }
+        int count = 0;
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(
+                new GZIPInputStream(new FileInputStream(file)), StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                String[] split = line.split(FIELD_DELIMITER, -1);
+                if (split.length != 3) {
+                    LOGGER.warn("Skipped bad line in fingerprint cache " + file);
+                    continue;
+                }
+                entries.put(split[0], new Tables(toSet(split[1]), toSet(split[2])));
+                count += 1;
+            }
+        }
+        LOGGER.info("Loaded " + count + " fingerprints from " + file);
+    }
+
+    /**
+     * Save cached entries from the least to the most recently used, so the order is kept after load.
+     * @param file Cache file.
+     * @throws IOException
+     */
+    public synchronized void save(File file) throws IOException {
+        File tmpFile = new File(file.getPath() + ".tmp");
+        try (BufferedWriter writer = new BufferedWriter(new OutputStreamWriter(
+                new GZIPOutputStream(new FileOutputStream(tmpFile)), StandardCharsets.UTF_8))) {
+            for (Map.Entry<String, Tables> entry : entries.entrySet()) {
+                writer.write(entry.getKey());
+                writer.write(FIELD_DELIMITER);
+                writer.write(toString(entry.getValue().getSource()));
+                writer.write(FIELD_DELIMITER);
+                writer.write(toString(entry.getValue().getTarget()));
+                writer.newLine();
+            }
+        }
+        Files.move(tmpFile.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE,
+                StandardCopyOption.REPLACE_EXISTING);
+        LOGGER.info("Saved " + entries.size() + " fingerprints to " + file);
+    }
+
+    private static Set<String> toSet(String tables) {
+        Set<String> result = new HashSet<>();
+        if (!tables.isEmpty()) {
+            result.addAll(Arrays.asList(tables.split(TABLE_DELIMITER)));
+        }
+        return result;
+    }
+
+    private static String toString(Set<String> tables) {
+        StringJoiner sj = new StringJoiner(TABLE_DELIMITER);
+        for (String table : tables) {
+            sj.add(table);
+        }
+        return sj.toString();
+    }
+
+    /**
+     * Source and target tables parsed from one statement.
+     */
+    public static class Tables {
+        private final Set<String> source;
+        private final Set<String> target;
+
+        private Tables(Set<String> source, Set<String> target) {
+            this.source = Collections.unmodifiableSet(new HashSet<>(source));
+            this.target = Collections.unmodifiableSet(new HashSet<>(target));
+        }
+
+        public Set<String> getSource() {
+            return source;
+        }
+
+        public Set<String> getTarget() {
+            return target;
+        }
+    }
+}
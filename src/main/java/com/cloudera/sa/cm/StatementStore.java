@@ -0,0 +1,168 @@
+package com.cloudera.sa.cm;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Append only store of statement text outside the heap.
+ * Each statement is deflated and appended to direct byte buffers, and callers keep only the int handle.
+ * The text is only inflated again when asked for, which is normally for debug logging.
+ * Appends are synchronized. Reads can run at the same time as appends.
+ */
+public class StatementStore {
+    // Size of one direct buffer. Larger statements get a buffer of their own.
+    private static final int CHUNK_BYTES = 16 * 1024 * 1024;
+    // Heap used by a String besides its chars: object header, fields and array header.
+    private static final int STRING_OVERHEAD_BYTES = 40;
+
+    private static final ThreadLocal<Deflater> DEFLATER = new ThreadLocal<Deflater>() {
+        @Override
+        protected Deflater initialValue() {
+            return new Deflater(Deflater.BEST_SPEED);
+        }
+    };
+    private static final ThreadLocal<Inflater> INFLATER = new ThreadLocal<Inflater>() {
+        @Override
+        protected Inflater initialValue() {
+            return new Inflater();
+        }
+    };
+
+    private List<ByteBuffer> chunks;
+    private ByteBuffer current;
+
+    // Position of each statement: chunk index in high 32 bits, offset in the chunk in low 32 bits.
+    private long[] positions;
+    private int[] compressedLengths;
+    private int[] rawLengths;
+    private volatile int count;
+
+    private long totalChars;
+    private long totalCompressed;
+    private long allocated;
+
+    public StatementStore() {
+        chunks = new ArrayList<>();
+        positions = new long[1024];
+        compressedLengths = new int[1024];
+        rawLengths = new int[1024];
+    }
+
+    /**
+     * Store the statement.
+     * @param statement Statement text.
+     * @return Handle to get the statement back.
+     */
+    public int put(String statement) {
+        byte[] raw = statement.getBytes(StandardCharsets.UTF_8);
+        byte[] compressed = deflate(raw);
+
+        synchronized (this) {
+            if (current == null || current.remaining() < compressed.length) {
+                current = ByteBuffer.allocateDirect(Math.max(CHUNK_BYTES, compressed.length));
+                chunks.add(current);
+                allocated += current.capacity();
+            }
+            int handle = count;
+            if (handle == positions.length) {
+                positions = Arrays.copyOf(positions, handle * 2);
+                compressedLengths = Arrays.copyOf(compressedLengths, handle * 2);
+                rawLengths = Arrays.copyOf(rawLengths, handle * 2);
+            }
+            positions[handle] = ((long) (chunks.size() - 1) << 32) | current.position();
+            compressedLengths[handle] = compressed.length;
+            rawLengths[handle] = raw.length;
+            current.put(compressed);
+
+            totalChars += statement.length();
+            totalCompressed += compressed.length;
+            count = handle + 1;
+            return handle;
+        }
+    }
+
+    /**
+     * Get the statement back.
+     * @param handle Handle from put.
+     * @return Statement text.
+     */
+    public String get(int handle) {
+        ByteBuffer view;
+        long position;
+        int compressedLength;
+        int rawLength;
+        synchronized (this) {
+            if (handle < 0 || handle >= count) {
+                throw new IllegalArgumentException("Unknown statement handle " + handle);
+            }
+            position = positions[handle];
+            compressedLength = compressedLengths[handle];
+            rawLength = rawLengths[handle];
+            // Read through a duplicate so appends to the same chunk do not move our position.
+            view = chunks.get((int) (position >>> 32)).duplicate();
+        }
+        view.position((int) position);
+        byte[] compressed = new byte[compressedLength];
+        view.get(compressed);
+        return new String(inflate(compressed, rawLength), StandardCharsets.UTF_8);
+    }
+
+    private static byte[] deflate(byte[] raw) {
+        Deflater deflater = DEFLATER.get();
+        deflater.reset();
+        deflater.setInput(raw);
+        deflater.finish();
+        ByteArrayOutputStream out = new ByteArrayOutputStream(Math.max(64, raw.length / 4));
+        byte[] buffer = new byte[8192];
+        while (!deflater.finished()) {
+            int length = deflater.deflate(buffer);
+            out.write(buffer, 0, length);
+        }
+        return out.toByteArray();
+    }
+
+    private static byte[] inflate(byte[] compressed, int rawLength) {
+        Inflater inflater = INFLATER.get();
+        inflater.reset();
+        inflater.setInput(compressed);
+        byte[] raw = new byte[rawLength];
+        try {
+            int offset = 0;
+            while (offset < rawLength && !inflater.finished()) {
+                offset += inflater.inflate(raw, offset, rawLength - offset);
+            }
+        } catch (DataFormatException e) {
+            throw new IllegalStateException("Corrupted statement in store", e);
+        }
+        return raw;
+    }
+
+    /**
+     * Get number of stored statements.
+     * @return Number of statements.
+     */
+    public int size() {
+        return count;
+    }
+
+    /**
+     * Report text size, stored size and the heap saved.
+     * @return Report string.
+     */
+    public synchronized String report() {
+        // Each String holds 2 bytes per char on heap. The index arrays and handles stay on heap.
+        long heapBytes = totalChars * 2 + (long) count * STRING_OVERHEAD_BYTES;
+        long indexBytes = (long) positions.length * (8 + 4 + 4) + (long) count * 4;
+        return String.format("Statement store: %d statements, %.1f MB text on heap saved, %.1f MB compressed "
+                        + "in %.1f MB off heap, %.1f MB index on heap, ratio %.1fx", count, heapBytes / 1048576.0,
+                totalCompressed / 1048576.0, allocated / 1048576.0, indexBytes / 1048576.0,
+                totalCompressed == 0 ? 0.0 : (double) totalChars / totalCompressed);
+    }
+}
@@ -0,0 +1,147 @@
+package com.cloudera.sa.cm;
+
+import com.cloudera.api.swagger.model.ApiImpalaQuery;
+import com.cloudera.api.swagger.model.ApiImpalaQueryResponse;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Decode the impalaQueries response of CM REST API as a stream.
+ * Only fields used by the analyzer are kept. Each query keeps queryId, statement, user, startTime,
+ * durationMillis and the attributes used for metrics. The rest, like most of the attributes, is skipped
+ * without being built into objects.
+ */
+public class StreamingQueryDecoder {
+
+    // Attributes kept for each query.
+    public static final Set<String> KEPT_ATTRIBUTES = new HashSet<>(Arrays.asList(
+            QueryAnalyzeUtil.MEMORY_PER_NODE_PEAK,
+            QueryAnalyzeUtil.ADMISSION_WAIT,
+            QueryAnalyzeUtil.HDFS_BYTES_READ,
+            QueryAnalyzeUtil.HDFS_BYTES_WRITE,
+            QueryAnalyzeUtil.FILE_FORMATS,
+            QueryAnalyzeUtil.RESOURCE_POOL,
+            QueryAnalyzeUtil.USER));
+
+    /**
+     * Decode the whole response.
+     * @param in Response body of impalaQueries.
+     * @return Response with compact queries and all warnings.
+     * @throws IOException
+     */
+    public static ApiImpalaQueryResponse decode(Reader in) throws IOException {
+        List<ApiImpalaQuery> queries = new ArrayList<>();
+        List<String> warnings = new ArrayList<>();
+
+        JsonReader reader = new JsonReader(in);
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String name = reader.nextName();
+            if ("queries".equals(name) && reader.peek() == JsonToken.BEGIN_ARRAY) {
+                reader.beginArray();
+                while (reader.hasNext()) {
+                    queries.add(decodeQuery(reader));
+                }
+                reader.endArray();
+            } else if ("warnings".equals(name) && reader.peek() == JsonToken.BEGIN_ARRAY) {
+                reader.beginArray();
+                while (reader.hasNext()) {
+                    warnings.add(nextString(reader));
+                }
+                reader.endArray();
+            } else {
+                reader.skipValue();
+            }
+        }
+        reader.endObject();
+
+        ApiImpalaQueryResponse response = new ApiImpalaQueryResponse();
+        response.setQueries(queries);
+        response.setWarnings(warnings);
+        return response;
+    }
+
+    /**
+     * Decode one query object.
+     * @param reader Reader at the start of the query object.
+     * @return Query with only used fields.
+     * @throws IOException
+     */
+    private static ApiImpalaQuery decodeQuery(JsonReader reader) throws IOException {
+        ApiImpalaQuery query = new ApiImpalaQuery();
+        Map<String, String> attributes = new HashMap<>();
+
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String name = reader.nextName();
+            if (reader.peek() == JsonToken.NULL) {
+                reader.nextNull();
+                continue;
+            }
+            switch (name) {
+                case "queryId":
+                    query.setQueryId(reader.nextString());
+                    break;
+                case "statement":
+                    query.setStatement(reader.nextString());
+                    break;
+                case "user":
+                    query.setUser(reader.nextString());
+                    break;
+                case "startTime":
+                    query.setStartTime(reader.nextString());
+                    break;
+                case "durationMillis":
+                    query.setDurationMillis(new BigDecimal(reader.nextString()));
+                    break;
+                case "attributes":
+                    decodeAttributes(reader, attributes);
+                    break;
+                default:
+                    reader.skipValue();
+            }
+        }
+        reader.endObject();
+
+        query.setAttributes(attributes);
+        return query;
+    }
+
+    /**
+     * Decode attributes and keep only those used.
+     * @param reader Reader at the start of the attributes object.
+     * @param attributes Map to put the kept attributes.
+     * @throws IOException
+     */
+    private static void decodeAttributes(JsonReader reader, Map<String, String> attributes) throws IOException {
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String key = reader.nextName();
+            if (KEPT_ATTRIBUTES.contains(key) && reader.peek() != JsonToken.NULL) {
+                attributes.put(key, nextString(reader));
+            } else {
+                reader.skipValue();
+            }
+        }
+        reader.endObject();
+    }
+
+    private static String nextString(JsonReader reader) throws IOException {
+        if (reader.peek() == JsonToken.NULL) {
+            reader.nextNull();
+            return null;
+        }
+        return reader.nextString();
+    }
+}
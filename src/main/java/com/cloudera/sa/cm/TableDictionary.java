@@ -0,0 +1,64 @@
+package com.cloudera.sa.cm;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Map table names to dense int ids starting from 0, so tables can be kept in arrays instead of hash sets.
+ * Not thread safe.
+ */
+public class TableDictionary {
+    public static final int NOT_FOUND = -1;
+
+    private Map<String, Integer> ids;
+    private List<String> names;
+
+    public TableDictionary() {
+        ids = new HashMap<>();
+        names = new ArrayList<>();
+    }
+
+    /**
+     * Get id of the table. A new id is given if the table is not seen before.
+     * @param name Table name.
+     * @return Table id.
+     */
+    public int id(String name) {
+        Integer id = ids.get(name);
+        if (id == null) {
+            id = names.size();
+            ids.put(name, id);
+            names.add(name);
+        }
+        return id;
+    }
+
+    /**
+     * Get id of the table without adding it.
+     * @param name Table name.
+     * @return Table id. NOT_FOUND if not seen before.
+     */
+    public int lookup(String name) {
+        Integer id = ids.get(name);
+        return id == null ? NOT_FOUND : id;
+    }
+
+    /**
+     * Get name of the table.
+     * @param id Table id.
+     * @return Table name.
+     */
+    public String name(int id) {
+        return names.get(id);
+    }
+
+    /**
+     * Get number of tables.
+     * @return Number of tables.
+     */
+    public int size() {
+        return names.size();
+    }
+}
@@ -0,0 +1,274 @@
+package com.cloudera.sa.cm;
+
+import java.util.AbstractMap;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * All queries writing each target table, sorted by start time, to find the query that wrote a table as of
+ * a time with a binary search.
+ * Queries are added in any order while collecting, and sorted once by compact(). Queries of the same start
+ * time are ordered by the sequence number they are added with, the order they were read from CM in, so the
+ * result does not depend on the order concurrent parses or searches finish in.
+ * Not thread safe while adding. Thread safe for lookups once compacted.
+ */
+public class TargetIndex {
+    private Map<String, Versions> versions;
+    private boolean compacted;
+    private long latestTime;
+    private int versionCount;
+    // Sequence number after the largest one added.
+    private long nextSequence;
+
+    public TargetIndex() {
+        this.versions = new HashMap<>();
+        this.compacted = true;
+        this.latestTime = QueryBase.NO_TIME;
+    }
+
+    /**
+     * Add a query writing the target table.
+     * @param target Target table.
+     * @param query Query with its start time set.
+     * @param sequence Order of the query among queries of the same start time. The same for all target
+     *                 tables of the query.
+     */
+    public void add(String target, QueryBase query, long sequence) {
+        Versions current = versions.get(target);
+        if (current == null) {
+            current = new Versions();
+            versions.put(target, current);
+        }
+        current.add(query, sequence);
+        latestTime = Math.max(latestTime, query.getStartTime());
+        nextSequence = Math.max(nextSequence, sequence + 1);
+        versionCount++;
+        compacted = false;
+    }
+
+    /**
+     * Add all queries of another index, after the queries of the same start time already added.
+     * @param other Index to add from.
+     */
+    public void addAll(TargetIndex other) {
+        long base = nextSequence;
+        for (Map.Entry<String, Versions> entry : other.versions.entrySet()) {
+            Versions from = entry.getValue();
+            for (int i = 0; i < from.count; i++) {
+                add(entry.getKey(), from.queries[i], base + from.sequences[i]);
+            }
+        }
+    }
+
+    /**
+     * Get the sequence number after all added, to add queries after them.
+     * @return Sequence number.
+     */
+    public long nextSequence() {
+        return nextSequence;
+    }
+
+    /**
+     * Sort the queries of each table by start time and trim the arrays.
+     */
+    public void compact() {
+        if (compacted) {
+            return;
+        }
+        for (Versions current : versions.values()) {
+            current.sort();
+        }
+        compacted = true;
+    }
+
+    /**
+     * Get the latest query writing the table.
+     * @param target Target table.
+     * @return Query. Null if no query writes the table.
+     */
+    public QueryBase latest(String target) {
+        Versions current = get(target);
+        return current == null ? null : current.queries[current.count - 1];
+    }
+
+    /**
+     * Get the query that wrote the table last as of the time.
+     * Queries without a start time are taken as older than any time.
+     * @param target Target table.
+     * @param time Milliseconds since epoch.
+     * @return Latest query started at or before the time. Null if none.
+     */
+    public QueryBase asOf(String target, long time) {
+        Versions current = get(target);
+        if (current == null) {
+            return null;
+        }
+        // Last version with start time <= time.
+        int low = 0;
+        int high = current.count - 1;
+        int result = -1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            if (current.times[mid] <= time) {
+                result = mid;
+                low = mid + 1;
+            } else {
+                high = mid - 1;
+            }
+        }
+        return result < 0 ? null : current.queries[result];
+    }
+
+    /**
+     * Get all queries writing the table.
+     * @param target Target table.
+     * @return Queries, oldest first. Empty if no query writes the table.
+     */
+    public List<QueryBase> producers(String target) {
+        Versions current = get(target);
+        if (current == null) {
+            return Collections.emptyList();
+        }
+        return Collections.unmodifiableList(Arrays.asList(current.queries).subList(0, current.count));
+    }
+
+    private Versions get(String target) {
+        if (!compacted) {
+            throw new IllegalStateException("Target index is not compacted");
+        }
+        return versions.get(target);
+    }
+
+    /**
+     * Get the latest query of each table.
+     * @return New map of queries by target table.
+     */
+    public Map<String, QueryBase> latestMap() {
+        Map<String, QueryBase> latest = new HashMap<>();
+        for (String target : versions.keySet()) {
+            latest.put(target, latest(target));
+        }
+        return latest;
+    }
+
+    /**
+     * Get a view of the queries writing each table as of the time. Lookups are binary searches, nothing is
+     * copied.
+     * @param time Milliseconds since epoch.
+     * @return Read only map of queries by target table.
+     */
+    public Map<String, QueryBase> asOfMap(final long time) {
+        return new AbstractMap<String, QueryBase>() {
+            @Override
+            public QueryBase get(Object key) {
+                return key instanceof String ? asOf((String) key, time) : null;
+            }
+
+            @Override
+            public boolean containsKey(Object key) {
+                return get(key) != null;
+            }
+
+            @Override
+            public Set<Entry<String, QueryBase>> entrySet() {
+                Set<Entry<String, QueryBase>> entries = new HashSet<>();
+                for (String target : versions.keySet()) {
+                    QueryBase query = asOf(target, time);
+                    if (query != null) {
+                        entries.add(new SimpleImmutableEntry<>(target, query));
+                    }
+                }
+                return entries;
+            }
+        };
+    }
+
+    /**
+     * Get start time of the latest query. Lookups as of this time or later are the same as the latest.
+     * @return Milliseconds since epoch. QueryBase.NO_TIME if empty or no query has a start time.
+     */
+    public long getLatestTime() {
+        return latestTime;
+    }
+
+    /**
+     * Get number of target tables.
+     * @return Number of tables.
+     */
+    public int size() {
+        return versions.size();
+    }
+
+    /**
+     * Get number of queries kept for all tables.
+     * @return Number of queries. A query writing two tables is counted twice.
+     */
+    public int versionCount() {
+        return versionCount;
+    }
+
+    /**
+     * Queries writing one table in parallel arrays of start times, sequence numbers and queries.
+     */
+    private static class Versions {
+        private long[] times = new long[1];
+        private long[] sequences = new long[1];
+        private QueryBase[] queries = new QueryBase[1];
+        private int count;
+        private boolean sorted = true;
+
+        private void add(QueryBase query, long sequence) {
+            if (count == times.length) {
+                times = Arrays.copyOf(times, count * 2);
+                sequences = Arrays.copyOf(sequences, count * 2);
+                queries = Arrays.copyOf(queries, count * 2);
+            }
+            times[count] = query.getStartTime();
+            sequences[count] = sequence;
+            queries[count] = query;
+            count++;
+            sorted = false;
+        }
+
+        private void sort() {
+            if (sorted) {
+                return;
+            }
+            sorted = true;
+            if (count > 1) {
+                Integer[] order = new Integer[count];
+                for (int i = 0; i < count; i++) {
+                    order[i] = i;
+                }
+                Arrays.sort(order, new Comparator<Integer>() {
+                    @Override
+                    public int compare(Integer a, Integer b) {
+                        int time = Long.compare(times[a], times[b]);
+                        return time != 0 ? time : Long.compare(sequences[a], sequences[b]);
+                    }
+                });
+                long[] sortedTimes = new long[count];
+                long[] sortedSequences = new long[count];
+                QueryBase[] sortedQueries = new QueryBase[count];
+                for (int i = 0; i < count; i++) {
+                    sortedTimes[i] = times[order[i]];
+                    sortedSequences[i] = sequences[order[i]];
+                    sortedQueries[i] = queries[order[i]];
+                }
+                times = sortedTimes;
+                sequences = sortedSequences;
+                queries = sortedQueries;
+            } else if (times.length > count) {
+                times = Arrays.copyOf(times, count);
+                sequences = Arrays.copyOf(sequences, count);
+                queries = Arrays.copyOf(queries, count);
+            }
+        }
+    }
+}
@@ -11,27 +11,44 @@ import java.util.*;
 public class TaskInfoCollector {
 
     private static final Logger LOGGER = LoggerFactory.getLogger(TaskInfoCollector.class);
+    private static final int[] NO_IDS = new int[0];
 
     private String id;
     private Set<String> targetTbls;
     private Set<String> sourceTbls;
+    // Found, missed and found source tables by name. Made from the ids below when asked for after a search on
+    // the lineage graph.
     private Set<String> foundSrcTbls;
     private Map<String, QueryBase> found;
     private Set<String> missed;
     private LinkedList<String> tableToScan;
     private boolean ignoreSrcDb;
+    // Time to search the lineage as of. QueryBase.NO_TIME for the latest.
+    private long runTime = QueryBase.NO_TIME;
     private TaskMetrics metrics;
+    // Metrics store rows of found queries not merged into metrics yet.
+    private int[] metricsRows;
+    private int metricsRowCount;
+
+    // Result of the search on the lineage graph.
+    private LineageGraph graph;
+    private int[] foundIds;
+    private int[] missedIds;
+    // Ids of the found source table names, without database when ignoring database names.
+    private int[] srcFoundIds;
+    // Targets not in the lineage graph.
+    private List<String> unknownMissed;
+    private List<String> unknownSrcFound;
 
     public TaskInfoCollector(String id, Set<String> targetTbls, Set<String> sourceTbls, boolean ignoreSrcDb) {
         this.id = id;
         this.targetTbls = targetTbls;
         this.sourceTbls = sourceTbls;
-        this.found = new HashMap<>();
-        this.missed = new HashSet<>();
-        this.foundSrcTbls = new HashSet<>();
-        this.tableToScan = new LinkedList<>();
         this.ignoreSrcDb = ignoreSrcDb;
         this.metrics = new TaskMetrics();
+        this.foundIds = NO_IDS;
+        this.missedIds = NO_IDS;
+        this.srcFoundIds = NO_IDS;
     }
 
     /**
@@ -43,6 +60,7 @@ public class TaskInfoCollector {
         this.foundSrcTbls = new HashSet<>();
         this.tableToScan = new LinkedList<>();
         this.metrics = new TaskMetrics();
+        this.metricsRowCount = 0;
     }
 
     /**
@@ -64,7 +82,7 @@ public class TaskInfoCollector {
                 // If all the source tables has excludeKey then do nothing.
                 if(!QueryAnalyzeUtil.allExclude(current.getSource(), excludeKey, excludeTbls)) {
                     found.put(target, current);
-                    metrics.updateMetrics(current.getMetrics());
+                    addMetrics(current);
                     dfsTraverse(current, found, allQueries, excludeTbls, excludeKey);
                 }
             } else if (inSrc(target)) {
@@ -79,7 +97,9 @@ public class TaskInfoCollector {
     }
 
     /**
-     * Inner function for DFS.
+     * Inner function for DFS. Uses its own stack instead of recursion, so deep chains do not overflow the
+     * thread stack. Tables are visited in the same order as the recursive search.
+     * A query with all sources excluded is not followed, the same as in WFS, so cycles end.
      * @param current Current query.
      * @param found Tables found in the search.
      * @param allQueries Set of all queries from CM search.
@@ -88,7 +108,10 @@ public class TaskInfoCollector {
      */
     public void dfsTraverse(QueryBase current, Map<String, QueryBase> found,
                             Map<String, QueryBase> allQueries, Set<String> excludeTbls, Set<String> excludeKey) {
-        for(String dependency : current.getSource()) {
+        LinkedList<String> stack = new LinkedList<>();
+        pushSources(stack, current);
+        while(!stack.isEmpty()) {
+            String dependency = stack.pop();
             // The dependency is not seen yet and it's not the end of search.
             if(allQueries.containsKey(dependency) && !excludeTbls.contains(dependency)
                     && !found.containsKey(dependency) && !inSrc(dependency) && !QueryAnalyzeUtil.hasKeyWd(dependency, excludeKey)) {
@@ -98,9 +121,9 @@ public class TaskInfoCollector {
                 // If all the source tables has excludeKey then do nothing.
                 if(!QueryAnalyzeUtil.allExclude(value.getSource(), excludeKey, excludeTbls)) {
                     found.put(dependency, value);
-                    metrics.updateMetrics(value.getMetrics());
+                    addMetrics(value);
+                    pushSources(stack, value);
                 }
-                dfsTraverse(value, found, allQueries, excludeTbls, excludeKey);
             } else if (inSrc(dependency)) {
                 recordFoundSrc(dependency);
             } else if (!allQueries.containsKey(dependency) && !QueryAnalyzeUtil.hasKeyWd(dependency, excludeKey)
@@ -111,6 +134,18 @@ public class TaskInfoCollector {
         }
     }
 
+    /**
+     * Push sources of the query so the first source is on top.
+     * @param stack Tables to scan.
+     * @param query Query.
+     */
+    private static void pushSources(LinkedList<String> stack, QueryBase query) {
+        List<String> sources = new ArrayList<>(query.getSource());
+        for (int i = sources.size() - 1; i >= 0; i--) {
+            stack.push(sources.get(i));
+        }
+    }
+
     /**
      * Use WFS algorithm to do the search.
      * For each target table, find SQL statements until source tables.
@@ -136,7 +171,7 @@ public class TaskInfoCollector {
                 // If all the source tables has excludeKey then do nothing.
                 if(!QueryAnalyzeUtil.allExclude(value.getSource(), excludeKey, excludeTbls)) {
                     found.put(current, value);
-                    metrics.updateMetrics(value.getMetrics());
+                    addMetrics(value);
                     for (String dependency : value.getSource()) {
                         tableToScan.push(dependency);
                     }
@@ -152,6 +187,338 @@ public class TaskInfoCollector {
         return new ArrayList<>(found.values());
     }
 
+    /**
+     * Use WFS algorithm to do the search, checking exclusions with the filter.
+     * Same as findSqlWfs(Map, Set, Set) on the exclude list and keys of the filter.
+     * @param allQueries Set of all queries from CM search.
+     * @param exclusion Exclude list and keys of tables.
+     * @return List of queries for the job.
+     */
+    public List<QueryBase> findSqlWfs(Map<String, QueryBase> allQueries, ExclusionFilter exclusion) {
+        clear();
+        tableToScan.addAll(targetTbls);
+
+        while(!tableToScan.isEmpty()) {
+            String current = tableToScan.pop();
+            QueryBase value = allQueries.get(current);
+
+            if(value != null && !exclusion.isIgnored(current) && !found.containsKey(current) && !inSrc(current)) {
+                // Only deal with found table and not in source / exclude / found list
+                // If all the source tables has excludeKey then do nothing.
+                if(!exclusion.allExclude(value.getSource())) {
+                    found.put(current, value);
+                    addMetrics(value);
+                    for (String dependency : value.getSource()) {
+                        tableToScan.push(dependency);
+                    }
+                }
+            } else if (inSrc(current)) {
+                recordFoundSrc(current);
+            } else if (value == null && !exclusion.isIgnored(current)) {
+                // Only record those not found and not in  exclude list
+                missed.add(current);
+            }
+        }
+        return new ArrayList<>(found.values());
+    }
+
+    /**
+     * Use DFS algorithm to do the search on the lineage graph.
+     * Same as findSqlDfs(TraversalContext) with a context of its own.
+     * @param graph Lineage graph of all queries from CM search.
+     */
+    public void findSqlDfs(LineageGraph graph) {
+        findSqlDfs(new TraversalContext(graph));
+    }
+
+    /**
+     * Use DFS algorithm to do the search on the lineage graph.
+     * Walks the strongly connected components of the graph with its own stack. Reaching a table of a
+     * component reaches all of it, so a component with no job source table is found at once and each cycle
+     * is visited once. Gives the same result as findSqlWfs.
+     * @param context Work space on the lineage graph, reused by jobs.
+     */
+    public void findSqlDfs(TraversalContext context) {
+        LineageGraph graph = context.getGraph();
+        int[] srcIds = begin(context);
+        while(!context.isEmpty()) {
+            int id = context.pop();
+            int query = graph.producer(id);
+            if (!graph.isTraversable(id) || context.isFound(id) || inSrc(graph, srcIds, id)) {
+                visitNotTraversed(context, srcIds, id, query);
+                continue;
+            }
+
+            int component = graph.component(id);
+            int start = graph.memberStart(component);
+            int end = graph.memberEnd(component);
+            boolean whole = end - start > 1;
+            for (int m = start; m < end && whole; m++) {
+                whole = !inSrc(graph, srcIds, graph.member(m));
+            }
+            if (!whole) {
+                context.addFound(id);
+                context.pushSources(query);
+                continue;
+            }
+            // Push the sources of the last member first, so the first member is scanned first.
+            for (int m = end - 1; m >= start; m--) {
+                if (!context.isFound(graph.member(m))) {
+                    context.addFound(graph.member(m));
+                }
+            }
+            for (int m = end - 1; m >= start; m--) {
+                context.pushSources(graph.producer(graph.member(m)));
+            }
+        }
+        finish(context, null, LineageGraph.NO_COMPONENT);
+    }
+
+    /**
+     * Use WFS algorithm to do the search on the lineage graph.
+     * Same as findSqlWfs(TraversalContext) with a context of its own.
+     * @param graph Lineage graph of all queries from CM search.
+     */
+    public void findSqlWfs(LineageGraph graph) {
+        findSqlWfs(new TraversalContext(graph));
+    }
+
+    /**
+     * Use WFS algorithm to do the search on the lineage graph.
+     * Same as findSqlWfs on all queries, with tables as int ids.
+     * @param context Work space on the lineage graph, reused by jobs.
+     */
+    public void findSqlWfs(TraversalContext context) {
+        LineageGraph graph = context.getGraph();
+        int[] srcIds = begin(context);
+        while(!context.isEmpty()) {
+            int id = context.pop();
+            int query = graph.producer(id);
+            // The table is written by a query and not excluded, and all its sources are not excluded.
+            if (graph.isTraversable(id) && !context.isFound(id) && !inSrc(graph, srcIds, id)) {
+                context.addFound(id);
+                context.pushSources(query);
+            } else {
+                visitNotTraversed(context, srcIds, id, query);
+            }
+        }
+        finish(context, null, LineageGraph.NO_COMPONENT);
+    }
+
+    /**
+     * Same as findSqlCached(ClosureCache, TraversalContext) with a context of its own.
+     * @param cache Closures of the lineage graph.
+     */
+    public void findSqlCached(ClosureCache cache) {
+        findSqlCached(cache, new TraversalContext(cache.getGraph()));
+    }
+
+    /**
+     * Same as findSqlWfs on the lineage graph, taking closures from the cache where the job can.
+     * A table whose closure has none of the job stop tables adds the whole closure without walking it.
+     * Only stop tables the search could go through matter here. Other stop tables in a closure are only
+     * recorded as found sources, the same as when walking. Other tables are walked one by one. Metrics are
+     * merged once for all found tables, or taken from the cache if all tables are from one closure.
+     * @param cache Closures of the lineage graph.
+     * @param context Work space on the same lineage graph, reused by jobs.
+     */
+    public void findSqlCached(ClosureCache cache, TraversalContext context) {
+        LineageGraph graph = cache.getGraph();
+        int[] srcIds = begin(context);
+        int[] stopIds = graph.stopIds(srcIds, ignoreSrcDb);
+        int[] cutIds = new int[stopIds.length];
+        int cutCount = 0;
+        for (int stop : stopIds) {
+            if (graph.isTraversable(stop)) {
+                cutIds[cutCount++] = stop;
+            }
+        }
+        cutIds = Arrays.copyOf(cutIds, cutCount);
+        int closures = 0;
+        int lastComponent = LineageGraph.NO_COMPONENT;
+        boolean walked = false;
+
+        while(!context.isEmpty()) {
+            int id = context.pop();
+            int query = graph.producer(id);
+            if (!graph.isTraversable(id) || context.isFound(id) || inSrc(graph, srcIds, id)) {
+                visitNotTraversed(context, srcIds, id, query);
+                continue;
+            }
+
+            int component = graph.component(id);
+            int[] closure = cache.getClosure(component, cutIds);
+            if (closure != null) {
+                closures++;
+                lastComponent = component;
+                for (int reached : closure) {
+                    if (!graph.isTraversable(reached)) {
+                        visitNotTraversed(context, srcIds, reached, graph.producer(reached));
+                    } else if (!context.isFound(reached)) {
+                        context.addFound(reached);
+                    }
+                }
+                continue;
+            }
+
+            walked = true;
+            context.addFound(id);
+            context.pushSources(query);
+        }
+        finish(context, cache, closures == 1 && !walked ? lastComponent : LineageGraph.NO_COMPONENT);
+    }
+
+    /**
+     * Start the search of this job in the context, with the targets to scan.
+     * @param context Work space on the lineage graph.
+     * @return Sorted ids of job source tables.
+     */
+    private int[] begin(TraversalContext context) {
+        LineageGraph graph = context.getGraph();
+        context.begin();
+        this.graph = graph;
+        this.found = null;
+        this.missed = null;
+        this.foundSrcTbls = null;
+        this.unknownMissed = null;
+        this.unknownSrcFound = null;
+        this.metrics = new TaskMetrics();
+        this.metricsRowCount = 0;
+
+        // Targets are scanned in their order, so push them in reverse.
+        List<String> targets = new ArrayList<>(targetTbls);
+        for (int i = targets.size() - 1; i >= 0; i--) {
+            int id = graph.lookup(targets.get(i));
+            if (id == TableDictionary.NOT_FOUND) {
+                visitUnknown(graph, targets.get(i));
+            } else {
+                context.push(id);
+            }
+        }
+        return graph.lookupAll(sourceTbls);
+    }
+
+    /**
+     * Keep the result of the search and merge metrics of the found queries.
+     * @param context Work space with the result.
+     * @param cache Closures of the lineage graph. Null if not used.
+     * @param component Component whose closure is the whole result, to take its metrics from the cache.
+     *                  NO_COMPONENT to merge metrics of the found queries.
+     */
+    private void finish(TraversalContext context, ClosureCache cache, int component) {
+        foundIds = context.getFound();
+        missedIds = context.getMissed();
+        srcFoundIds = context.getSources();
+        if (component != LineageGraph.NO_COMPONENT) {
+            metrics.updateMetrics(cache.getMetrics(component));
+            return;
+        }
+        for (int id : foundIds) {
+            addMetrics(graph.query(graph.producer(id)));
+        }
+    }
+
+    /**
+     * Check if a table the last search on the lineage graph went through, the targets and the sources of
+     * the found queries, is written by a query started after the time. If none is, the search on the
+     * queries as of the time goes through the same tables and finds the same queries.
+     * @param time Milliseconds since epoch.
+     * @return True if a table on the path was written after the time.
+     */
+    public boolean hasPathWrittenAfter(long time) {
+        for (String target : targetTbls) {
+            int id = graph.lookup(target);
+            if (id != TableDictionary.NOT_FOUND && writtenAfter(id, time)) {
+                return true;
+            }
+        }
+        for (int id : foundIds) {
+            int query = graph.producer(id);
+            for (int p = graph.sourceStart(query); p < graph.sourceEnd(query); p++) {
+                if (writtenAfter(graph.source(p), time)) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    private boolean writtenAfter(int id, long time) {
+        int query = graph.producer(id);
+        return query != LineageGraph.NO_QUERY && graph.query(query).getStartTime() > time;
+    }
+
+    /**
+     * Add metrics of the found query. Metrics in the metrics store are merged later all at once.
+     * @param query Found query.
+     */
+    private void addMetrics(QueryBase query) {
+        if (query.getMetricsRow() != MetricsStore.NO_ID) {
+            if (metricsRows == null) {
+                metricsRows = new int[16];
+            } else if (metricsRowCount == metricsRows.length) {
+                metricsRows = Arrays.copyOf(metricsRows, metricsRowCount * 2);
+            }
+            metricsRows[metricsRowCount++] = query.getMetricsRow();
+        } else if (query.getMetrics() != null) {
+            metrics.updateMetrics(query.getMetrics());
+        }
+    }
+
+    /**
+     * Record a table not traversed as a found source or a missed table.
+     * @param context Work space on the lineage graph.
+     * @param srcIds Sorted ids of job source tables.
+     * @param id Table id.
+     * @param query Query writing the table.
+     */
+    private void visitNotTraversed(TraversalContext context, int[] srcIds, int id, int query) {
+        LineageGraph graph = context.getGraph();
+        if (inSrc(graph, srcIds, id)) {
+            // Same as recordFoundSrc, by id of the name kept.
+            int noDbId = graph.noDbId(id);
+            context.addSource(ignoreSrcDb && noDbId != TableDictionary.NOT_FOUND ? noDbId : id);
+        } else if (query == LineageGraph.NO_QUERY && !graph.hasExcludeKey(id) && !graph.isExcluded(id)) {
+            // Only record those not found and not in  exclude list
+            context.addMissed(id);
+        }
+    }
+
+    /**
+     * Record a table not in the lineage graph as a found source or a missed table.
+     * @param graph Lineage graph.
+     * @param tbl Table name.
+     */
+    private void visitUnknown(LineageGraph graph, String tbl) {
+        if (inSrc(tbl)) {
+            if (unknownSrcFound == null) {
+                unknownSrcFound = new ArrayList<>();
+            }
+            unknownSrcFound.add(tbl);
+        } else if (!graph.isExcluded(tbl) && !graph.hasExcludeKey(tbl)) {
+            if (unknownMissed == null) {
+                unknownMissed = new ArrayList<>();
+            }
+            unknownMissed.add(tbl);
+        }
+    }
+
+    /**
+     * Is the table in source tables, by id.
+     * @param graph Lineage graph.
+     * @param srcIds Sorted ids of job source tables.
+     * @param id Table id.
+     * @return True if found in source tables.
+     */
+    private boolean inSrc(LineageGraph graph, int[] srcIds, int id) {
+        int noDbId = graph.noDbId(id);
+        if (!ignoreSrcDb || noDbId == TableDictionary.NOT_FOUND) {
+            return Arrays.binarySearch(srcIds, id) >= 0;
+        } else {
+            return Arrays.binarySearch(srcIds, noDbId) >= 0;
+        }
+    }
+
     /**
      * Is the table in source tablews.
      * @param tbl The table.
@@ -188,20 +555,25 @@ public class TaskInfoCollector {
      * @return Metrics of the job.
      */
     public TaskMetrics getMetrics() {
+        if (metricsRowCount > 0) {
+            QueryBase.getMetricsStore().merge(metricsRows, metricsRowCount, metrics);
+            metricsRowCount = 0;
+        }
         return metrics;
     }
 
     /**
      * The String is formmatted as id, user, maxMemoryGB, TotalDuration, MaxDuration, Total Admission Wait, TotalInput, Total Output
-     * , File Formats, Found Source Tables, Not Found Source Tables,Total Query Count.
+     * , File Formats, Pools, Found Source Tables, Not Found Source Tables,Total Query Count.
      * @return Value string in csv format.
      */
     public String toString() {
+        TaskMetrics metrics = getMetrics();
         String queryMostMem = "";
         String queryLongest = "";
 
         if (LOGGER.isDebugEnabled()) {
-            for (QueryBase query : found.values()) {
+            for (QueryBase query : getFound().values()) {
                 LOGGER.debug(query.getStatement());
 
                 if (query.getMetrics().getMaxMemoryGb() >= metrics.getMaxMemoryGb()) {
@@ -249,8 +621,8 @@ public class TaskInfoCollector {
         csvBuilder.append(queueSj.toString()).append(",");
 
 
-        csvBuilder.append(getSrcFound().size()).append(",");
-        csvBuilder.append(getMissedSrc().size()).append(",");
+        csvBuilder.append(getSrcFoundCount()).append(",");
+        csvBuilder.append(sourceTbls.size() - getSrcFoundCount()).append(",");
         csvBuilder.append(getQueryCount());
 
         return csvBuilder.toString();
@@ -261,7 +633,10 @@ public class TaskInfoCollector {
      * @return Number of not found tables.
      */
     public int notFoundTbls() {
-        return missed.size();
+        if (missed != null) {
+            return missed.size();
+        }
+        return missedIds.length + (unknownMissed == null ? 0 : unknownMissed.size());
     }
 
     /**
@@ -269,7 +644,10 @@ public class TaskInfoCollector {
      * @return Set of queries found.
      */
     public int getQueryCount() {
-        return found.values().size();
+        if (found != null) {
+            return found.size();
+        }
+        return foundIds.length;
     }
 
     /**
@@ -280,11 +658,41 @@ public class TaskInfoCollector {
         return id;
     }
 
+    /**
+     * Get run time of the job.
+     * @return Milliseconds since epoch. QueryBase.NO_TIME to search the latest lineage.
+     */
+    public long getRunTime() {
+        return runTime;
+    }
+
+    /**
+     * Set run time of the job.
+     * @param runTime Milliseconds since epoch. QueryBase.NO_TIME to search the latest lineage.
+     */
+    public void setRunTime(long runTime) {
+        this.runTime = runTime;
+    }
+
+    /**
+     * Get target tables of the job.
+     * @return Target tables.
+     */
+    public Set<String> getTargetTbls() {
+        return targetTbls;
+    }
+
     /**
      * Get queries found.
      * @return Queries found.
      */
     public Map<String, QueryBase> getFound() {
+        if (found == null) {
+            found = new HashMap<>();
+            for (int table : foundIds) {
+                found.put(graph.name(table), graph.query(graph.producer(table)));
+            }
+        }
         return found;
     }
 
@@ -293,6 +701,15 @@ public class TaskInfoCollector {
      * @return Missed statements.
      */
     public Set<String> getMissed() {
+        if (missed == null) {
+            missed = new HashSet<>();
+            for (int table : missedIds) {
+                missed.add(graph.name(table));
+            }
+            if (unknownMissed != null) {
+                missed.addAll(unknownMissed);
+            }
+        }
         return missed;
     }
 
@@ -302,7 +719,7 @@ public class TaskInfoCollector {
      */
     public Set<String> getMissedSrc() {
         Set<String> ret = new HashSet<>(sourceTbls);
-        ret.removeAll(foundSrcTbls);
+        ret.removeAll(getSrcFound());
         return ret;
     }
 
@@ -311,15 +728,38 @@ public class TaskInfoCollector {
      * @return
      */
     public Set<String> getSrcFound() {
+        if (foundSrcTbls == null) {
+            foundSrcTbls = new HashSet<>();
+            for (int table : srcFoundIds) {
+                foundSrcTbls.add(graph.name(table));
+            }
+            if (unknownSrcFound != null) {
+                for (String tbl : unknownSrcFound) {
+                    recordFoundSrc(tbl);
+                }
+            }
+        }
         return foundSrcTbls;
     }
 
+    /**
+     * Get number of source tables seen, without making the set if not needed.
+     * Found source tables are all in the job source tables.
+     * @return Number of source tables seen.
+     */
+    private int getSrcFoundCount() {
+        if (foundSrcTbls == null && unknownSrcFound == null) {
+            return srcFoundIds.length;
+        }
+        return getSrcFound().size();
+    }
+
 
     /**
      * Check if all source tables found.
      * @return True if all source tables found.
      */
     public boolean isAllSrcFound() {
-        return getMissedSrc().size() == 0;
+        return getSrcFoundCount() == sourceTbls.size();
     }
 }
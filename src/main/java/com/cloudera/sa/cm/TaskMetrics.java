@@ -19,6 +19,7 @@ public class TaskMetrics {
     private Set<String> fileFormats;
     private Set<String> queues;
     private Set<String> users;
+    private Set<String> services;
 
     public TaskMetrics() {
         maxMemoryGb = 0;
@@ -33,6 +34,7 @@ public class TaskMetrics {
         fileFormats = new HashSet<>();
         queues = new HashSet<>();
         users = new HashSet<>();
+        services = new HashSet<>();
     }
 
     /**
@@ -115,6 +117,14 @@ public class TaskMetrics {
         return users;
     }
 
+    /**
+     * Get all services the queries came from.
+     * @return Services in cluster/service format.
+     */
+    public Set<String> getServices() {
+        return services;
+    }
+
     /**
      * Get max duration of statements.
      * @return Max duration of statements.
@@ -199,6 +209,39 @@ public class TaskMetrics {
         users.add(user);
     }
 
+    /**
+     * Add service to the metrics.
+     * @param service Service in cluster/service format.
+     */
+    public void addService(String service) {
+        services.add(service);
+    }
+
+    /**
+     * Merge totals and max values of other queries.
+     * @param memoryGb Max memory in GB.
+     * @param totalDuration Total duration in seconds.
+     * @param maxDuration Max duration in seconds.
+     * @param totalWait Total admission wait in seconds.
+     * @param maxWait Max admission wait in seconds.
+     * @param totalInput Total input bytes.
+     * @param maxInput Max input bytes.
+     * @param totalOutput Total output bytes.
+     * @param maxOutput Max output bytes.
+     */
+    public void updateTotals(double memoryGb, double totalDuration, double maxDuration, double totalWait,
+                             double maxWait, long totalInput, long maxInput, long totalOutput, long maxOutput) {
+        maxMemoryGb = Math.max(maxMemoryGb, memoryGb);
+        duration += totalDuration;
+        this.maxDuration = Math.max(this.maxDuration, maxDuration);
+        admissionDurtaion += totalWait;
+        maxAdmissionDurtaion = Math.max(maxAdmissionDurtaion, maxWait);
+        totalInputBuytes += totalInput;
+        totalOutputBytes += totalOutput;
+        maxInputBytes = Math.max(maxInputBytes, maxInput);
+        maxOutputBytes = Math.max(maxOutputBytes, maxOutput);
+    }
+
     /**
      * Merge information in the two metrics.
      * @param task Another metrics.
@@ -216,6 +259,7 @@ public class TaskMetrics {
         fileFormats.addAll(task.fileFormats);
         queues.addAll(task.queues);
         users.addAll(task.users);
+        services.addAll(task.services);
     }
 
 }
@@ -40,4 +40,13 @@ public interface TaskReader {
      * @return Sets of target tables.
      */
     public Set<String> nextTargets();
+
+    /**
+     * Get run time for current ID. Lineage of the job is searched as of this time.
+     * Readers without run times search the latest lineage.
+     * @return Milliseconds since epoch. QueryBase.NO_TIME to search the latest lineage.
+     */
+    public default long nextRunTime() {
+        return QueryBase.NO_TIME;
+    }
 }
@@ -0,0 +1,185 @@
+package com.cloudera.sa.cm;
+
+import java.util.Arrays;
+
+/**
+ * Work space for searching jobs on a lineage graph, reused from job to job.
+ * Tables seen by a job are stamped with the epoch of the job in arrays indexed by table id, so starting
+ * the next job is one increment instead of clearing sets. Found, missed and found source tables are kept
+ * in int lists, and only turned into names when output needs them.
+ * Not thread safe. Use one context per thread.
+ */
+public class TraversalContext {
+    private LineageGraph graph;
+    private int epoch;
+
+    private int[] foundStamp;
+    private int[] missedStamp;
+    private int[] sourceStamp;
+
+    private int[] stack;
+    private int stackSize;
+    private int[] found;
+    private int foundCount;
+    private int[] missed;
+    private int missedCount;
+    private int[] sources;
+    private int sourceCount;
+
+    /**
+     * @param graph Lineage graph to search.
+     */
+    public TraversalContext(LineageGraph graph) {
+        this.graph = graph;
+        int size = graph.tableCount();
+        this.foundStamp = new int[size];
+        this.missedStamp = new int[size];
+        this.sourceStamp = new int[size];
+        this.stack = new int[64];
+        this.found = new int[64];
+        this.missed = new int[64];
+        this.sources = new int[16];
+    }
+
+    /**
+     * Get the lineage graph.
+     * @return Lineage graph.
+     */
+    public LineageGraph getGraph() {
+        return graph;
+    }
+
+    /**
+     * Start a new job. Tables seen by earlier jobs are no longer seen.
+     */
+    public void begin() {
+        if (epoch == Integer.MAX_VALUE) {
+            Arrays.fill(foundStamp, 0);
+            Arrays.fill(missedStamp, 0);
+            Arrays.fill(sourceStamp, 0);
+            epoch = 0;
+        }
+        epoch++;
+        stackSize = 0;
+        foundCount = 0;
+        missedCount = 0;
+        sourceCount = 0;
+    }
+
+    /**
+     * Push table to scan.
+     * @param table Table id.
+     */
+    public void push(int table) {
+        if (stackSize == stack.length) {
+            stack = Arrays.copyOf(stack, stackSize * 2);
+        }
+        stack[stackSize++] = table;
+    }
+
+    /**
+     * Push sources of the query so the first source is on top.
+     * @param query Query index.
+     */
+    public void pushSources(int query) {
+        int start = graph.sourceStart(query);
+        int end = graph.sourceEnd(query);
+        if (stackSize + end - start > stack.length) {
+            stack = Arrays.copyOf(stack, Math.max(stack.length * 2, stackSize + end - start));
+        }
+        for (int i = end - 1; i >= start; i--) {
+            stack[stackSize++] = graph.source(i);
+        }
+    }
+
+    /**
+     * Check if there are tables to scan.
+     * @return True if no table to scan.
+     */
+    public boolean isEmpty() {
+        return stackSize == 0;
+    }
+
+    /**
+     * Take the next table to scan.
+     * @return Table id.
+     */
+    public int pop() {
+        return stack[--stackSize];
+    }
+
+    /**
+     * Check if the table is found by the job.
+     * @param table Table id.
+     * @return True if found.
+     */
+    public boolean isFound(int table) {
+        return foundStamp[table] == epoch;
+    }
+
+    /**
+     * Record the table as found.
+     * @param table Table id, not found yet.
+     */
+    public void addFound(int table) {
+        foundStamp[table] = epoch;
+        if (foundCount == found.length) {
+            found = Arrays.copyOf(found, foundCount * 2);
+        }
+        found[foundCount++] = table;
+    }
+
+    /**
+     * Record the table as missed, once.
+     * @param table Table id.
+     */
+    public void addMissed(int table) {
+        if (missedStamp[table] == epoch) {
+            return;
+        }
+        missedStamp[table] = epoch;
+        if (missedCount == missed.length) {
+            missed = Arrays.copyOf(missed, missedCount * 2);
+        }
+        missed[missedCount++] = table;
+    }
+
+    /**
+     * Record the job source table as found, once.
+     * @param table Table id of the job source table name.
+     */
+    public void addSource(int table) {
+        if (sourceStamp[table] == epoch) {
+            return;
+        }
+        sourceStamp[table] = epoch;
+        if (sourceCount == sources.length) {
+            sources = Arrays.copyOf(sources, sourceCount * 2);
+        }
+        sources[sourceCount++] = table;
+    }
+
+    /**
+     * Get found tables of the job.
+     * @return Table ids in the order found.
+     */
+    public int[] getFound() {
+        return Arrays.copyOf(found, foundCount);
+    }
+
+    /**
+     * Get missed tables of the job.
+     * @return Table ids.
+     */
+    public int[] getMissed() {
+        return Arrays.copyOf(missed, missedCount);
+    }
+
+    /**
+     * Get found source tables of the job.
+     * @return Table ids of the job source table names.
+     */
+    public int[] getSources() {
+        return Arrays.copyOf(sources, sourceCount);
+    }
+}
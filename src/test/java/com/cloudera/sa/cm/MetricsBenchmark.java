@@ -0,0 +1,111 @@
+package com.cloudera.sa.cm;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Benchmark of keeping query metrics as one TaskMetrics per query against MetricsStore.
+ * Reports heap used per query and time to merge the metrics of random tasks.
+ * Usage: MetricsBenchmark [queries] [tasks] [queries per task]
+ */
+public class MetricsBenchmark {
+    private static final List<String> FORMATS = Arrays.asList("TEXT", "PARQUET", "AVRO", "RC_FILE", "SEQUENCE_FILE");
+
+    public static void main(String[] args) throws Exception {
+        int queries = args.length > 0 ? Integer.parseInt(args[0]) : 1000000;
+        int tasks = args.length > 1 ? Integer.parseInt(args[1]) : 10000;
+        int perTask = args.length > 2 ? Integer.parseInt(args[2]) : 200;
+
+        Random random = new Random(0);
+        int[][] taskRows = new int[tasks][perTask];
+        for (int[] rows : taskRows) {
+            for (int i = 0; i < perTask; i++) {
+                rows[i] = random.nextInt(queries);
+            }
+        }
+
+        long before = usedHeap();
+        List<TaskMetrics> objects = new ArrayList<>(queries);
+        for (int i = 0; i < queries; i++) {
+            objects.add(create(i));
+        }
+        long objectBytes = usedHeap() - before;
+
+        before = usedHeap();
+        MetricsStore store = new MetricsStore();
+        for (int i = 0; i < queries; i++) {
+            store.add(create(i));
+        }
+        long storeBytes = usedHeap() - before;
+
+        // Warm up JIT before timing.
+        mergeObjects(objects, taskRows);
+        mergeStore(store, taskRows);
+        long start = System.nanoTime();
+        double objectCheck = mergeObjects(objects, taskRows);
+        long objectNanos = System.nanoTime() - start;
+        start = System.nanoTime();
+        double storeCheck = mergeStore(store, taskRows);
+        long storeNanos = System.nanoTime() - start;
+
+        System.out.println(String.format("TaskMetrics   %8.1f bytes/query, merge %8.1f ms", (double) objectBytes / queries,
+                objectNanos / 1e6));
+        System.out.println(String.format("MetricsStore  %8.1f bytes/query, merge %8.1f ms", (double) storeBytes / queries,
+                storeNanos / 1e6));
+        if (objectCheck != storeCheck) {
+            System.out.println("Merged durations differ: " + objectCheck + " " + storeCheck);
+        }
+        // Keep both alive until measured.
+        System.out.println(store.report() + ", " + objects.size() + " objects");
+    }
+
+    /**
+     * Create metrics of one query the way QueryAnalyzeUtil does from a CM response.
+     */
+    private static TaskMetrics create(int i) {
+        TaskMetrics metrics = new TaskMetrics();
+        metrics.updateDuration(i % 3600);
+        metrics.updateMemoryGb((i % 64) / 4.0);
+        metrics.updateAdmissionWait(i % 7);
+        metrics.updateInputBytes(i * 1024L);
+        metrics.updateOutputBytes(i * 512L);
+        metrics.addInputFormat(FORMATS.get(i % FORMATS.size()));
+        metrics.addQueue("root.pool" + (i % 20));
+        metrics.addUser("user" + (i % 500));
+        metrics.addService("cluster/impala");
+        return metrics;
+    }
+
+    private static double mergeObjects(List<TaskMetrics> objects, int[][] taskRows) {
+        double total = 0;
+        for (int[] rows : taskRows) {
+            TaskMetrics task = new TaskMetrics();
+            for (int row : rows) {
+                task.updateMetrics(objects.get(row));
+            }
+            total += task.getDuration();
+        }
+        return total;
+    }
+
+    private static double mergeStore(MetricsStore store, int[][] taskRows) {
+        double total = 0;
+        for (int[] rows : taskRows) {
+            TaskMetrics task = new TaskMetrics();
+            store.merge(rows, rows.length, task);
+            total += task.getDuration();
+        }
+        return total;
+    }
+
+    private static long usedHeap() throws InterruptedException {
+        Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+            Thread.sleep(100);
+        }
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+}
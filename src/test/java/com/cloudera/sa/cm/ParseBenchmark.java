@@ -0,0 +1,109 @@
+package com.cloudera.sa.cm;
+
+import org.apache.impala.analysis.InsertStmt;
+import org.apache.impala.analysis.QueryStmt;
+import org.apache.impala.analysis.SqlParser;
+import org.apache.impala.analysis.SqlScanner;
+import org.apache.impala.analysis.StatementBase;
+
+import java.io.StringReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Micro benchmark of getting tables from INSERT statements.
+ * Compares QueryBase with the old way of parsing the query of an INSERT a second time, and with
+ * LightweightTableExtractor.
+ * Usage: ParseBenchmark [iterations] [file with one statement per line]
+ */
+public class ParseBenchmark {
+    private static final List<String> SAMPLES = Arrays.asList(
+            "insert overwrite table dw.fact_sales partition (dt='2019-04-27') select s.id, s.amount, c.name "
+                    + "from ods.sales s join ods.customer c on s.customer_id = c.id where s.dt = '2019-04-27'",
+            "with recent as (select * from ods.orders where dt >= '2019-04-01'), "
+                    + "big as (select customer_id, sum(amount) total from recent group by customer_id) "
+                    + "insert into dw.big_customer select b.customer_id, b.total, c.region from big b "
+                    + "left join ods.customer c on b.customer_id = c.id",
+            "insert into dw.daily_summary select dt, count(*), sum(amount) from "
+                    + "(select * from ods.sales union all select * from ods.sales_archive) a group by dt",
+            "insert overwrite dw.user_last select u.* from ods.users u where u.id in "
+                    + "(select user_id from ods.login where dt = '2019-04-27')");
+
+    public static void main(String[] args) throws Exception {
+        int iterations = args.length > 0 ? Integer.parseInt(args[0]) : 10000;
+        List<String> statements = new ArrayList<>(SAMPLES);
+        if (args.length > 1) {
+            statements = Files.readAllLines(Paths.get(args[1]), StandardCharsets.UTF_8);
+        }
+
+        // Warm up JIT before timing.
+        int warmup = Math.max(1, iterations / 10);
+        run("single parse", statements, warmup, Method.SINGLE);
+        run("double parse", statements, warmup, Method.DOUBLE);
+        run("fast extractor", statements, warmup, Method.FAST);
+
+        long single = run("single parse", statements, iterations, Method.SINGLE);
+        long twice = run("double parse", statements, iterations, Method.DOUBLE);
+        long fast = run("fast extractor", statements, iterations, Method.FAST);
+        report("single parse", single, iterations * statements.size());
+        report("double parse", twice, iterations * statements.size());
+        report("fast extractor", fast, iterations * statements.size());
+        System.out.println(String.format("Single parse speedup over double parse: %.2fx", (double) twice / single));
+    }
+
+    private enum Method {
+        SINGLE, DOUBLE, FAST
+    }
+
+    private static long run(String name, List<String> statements, int iterations, Method method) throws Exception {
+        long start = System.nanoTime();
+        int tables = 0;
+        for (int i = 0; i < iterations; i++) {
+            for (String statement : statements) {
+                switch (method) {
+                    case SINGLE:
+                        tables += new QueryBase(statement, null).getSource().size();
+                        break;
+                    case DOUBLE:
+                        tables += parseTwice(statement.toLowerCase());
+                        break;
+                    case FAST:
+                        tables += LightweightTableExtractor.extract(statement).getSource().size();
+                        break;
+                }
+            }
+        }
+        long elapsed = System.nanoTime() - start;
+        if (tables < 0) {
+            // Keep the results alive.
+            System.out.println(name);
+        }
+        return elapsed;
+    }
+
+    /**
+     * The way INSERT was parsed before: parse, print the query back into SQL, and parse it again with the
+     * text before INSERT.
+     */
+    private static int parseTwice(String statement) throws Exception {
+        StatementBase stmt = (StatementBase) new SqlParser(new SqlScanner(new StringReader(statement))).parse().value;
+        if (!(stmt instanceof InsertStmt)) {
+            return 0;
+        }
+        InsertStmt insertStmt = (InsertStmt) stmt;
+        String tableName = insertStmt.getTargetTableName().toString();
+        String withString = statement.replaceAll("insert\\s+(into|overwrite)\\s+(table\\s+)?" + tableName + "[\\d\\D]*", " ");
+        String selectString = insertStmt.getQueryStmt().toSql();
+        QueryStmt queryStmt = (QueryStmt) new SqlParser(new SqlScanner(new StringReader(withString + selectString))).parse().value;
+        return queryStmt == null ? 0 : 1;
+    }
+
+    private static void report(String name, long nanos, int statements) {
+        System.out.println(String.format("%-15s %8.1f ms total, %8.2f us/statement", name, nanos / 1e6,
+                nanos / 1e3 / statements));
+    }
+}
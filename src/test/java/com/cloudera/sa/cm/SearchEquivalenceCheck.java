@@ -0,0 +1,187 @@
+package com.cloudera.sa.cm;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.TreeSet;
+
+/**
+ * Check that all searches find the same lineage as the WFS on the map of all queries, on generated graphs.
+ * Tables read tables of any other number, so the graphs have cycles. Some queries write two tables, jobs
+ * stop at source tables given with and without database, and there are exclude tables and keys.
+ * Searches checked: WFS and DFS on the map, WFS with the exclusion filter, WFS and strongly connected
+ * component DFS on the lineage graph, and the closure cache search with all closures kept and with few.
+ * Tables are written more than once at random start times, and jobs with a run time are also searched the
+ * way the analyzer does, against the WFS on the map of queries as of the run time. Every other graph keeps
+ * the metrics of the searched queries in the metrics store, while the WFS on the map merges its own copies.
+ * Prints the first mismatches and exits with 1 if any search differs.
+ * Usage: SearchEquivalenceCheck [graphs] [seed]
+ */
+public class SearchEquivalenceCheck {
+    private static final int MAX_PRINTED = 5;
+
+    public static void main(String[] args) {
+        int graphs = args.length > 0 ? Integer.parseInt(args[0]) : 500;
+        long seed = args.length > 1 ? Long.parseLong(args[1]) : 0;
+
+        Random random = new Random(seed);
+        int jobs = 0;
+        int mismatches = 0;
+        try {
+            for (int g = 0; g < graphs; g++) {
+                boolean stored = g % 2 == 1;
+                QueryBase.setMetricsStore(stored ? new MetricsStore() : null);
+                int tables = 5 + random.nextInt(80);
+                // Reference queries keep their own metrics. Searched ones are the same queries, stored.
+                TargetIndex expectedIndex = new TargetIndex();
+                TargetIndex index = new TargetIndex();
+                long sequence = 0;
+                for (int t = 0; t < tables; t++) {
+                    if (random.nextInt(5) == 0) {
+                        // Not written by any query.
+                        continue;
+                    }
+                    boolean twoTargets = random.nextInt(6) == 0;
+                    int versions = 1 + random.nextInt(3);
+                    for (int v = 0; v < versions; v++) {
+                        Set<String> sources = new HashSet<>();
+                        int sourceCount = 1 + random.nextInt(4);
+                        for (int j = 0; j < sourceCount; j++) {
+                            // Mostly upstream tables of higher numbers, sometimes any table, which makes cycles.
+                            int source = random.nextInt(3) == 0 ? random.nextInt(tables)
+                                    : t + 1 + random.nextInt(tables);
+                            sources.add((random.nextInt(4) > 0 ? "db." : "db2.") + "t" + source);
+                        }
+                        TaskMetrics metrics = new TaskMetrics();
+                        metrics.updateDuration(t + v);
+                        metrics.updateMemoryGb(random.nextInt(64));
+                        metrics.updateInputBytes(random.nextInt(1000));
+                        metrics.addUser("user" + t);
+                        metrics.addQueue("root.q" + random.nextInt(3));
+                        metrics.addInputFormat(random.nextBoolean() ? "PARQUET" : "TEXT");
+                        TaskMetrics copy = new TaskMetrics();
+                        copy.updateMetrics(metrics);
+                        long startTime = random.nextInt(1000);
+
+                        QueryBase expectedQuery = new QueryBase("insert into db.t" + t, metrics, sources,
+                                Collections.singleton("db.t" + t));
+                        expectedQuery.setStartTime(startTime);
+                        QueryBase query = new QueryBase("insert into db.t" + t, copy, sources,
+                                Collections.singleton("db.t" + t));
+                        query.setStartTime(startTime);
+                        query.store();
+                        expectedIndex.add("db.t" + t, expectedQuery, sequence);
+                        index.add("db.t" + t, query, sequence);
+                        if (twoTargets) {
+                            // Same query for a second table.
+                            expectedIndex.add("db.t" + (t + tables), expectedQuery, sequence);
+                            index.add("db.t" + (t + tables), query, sequence);
+                        }
+                        sequence++;
+                    }
+                }
+                expectedIndex.compact();
+                index.compact();
+                Map<String, QueryBase> expectedQueries = expectedIndex.latestMap();
+                Map<String, QueryBase> allQueries = index.latestMap();
+
+                Set<String> excludeTbls = new HashSet<>(Arrays.asList("db.t" + random.nextInt(tables),
+                        "db2.t" + random.nextInt(tables)));
+                Set<String> excludeKeys = new HashSet<>(Arrays.asList("t1" + random.nextInt(9)));
+                ExclusionFilter exclusion = new ExclusionFilter(excludeTbls, excludeKeys);
+                LineageGraph graph = LineageGraph.build(allQueries, exclusion);
+                TraversalContext context = new TraversalContext(graph);
+                ClosureCache fullCache = new ClosureCache(graph, Long.MAX_VALUE);
+                ClosureCache smallCache = new ClosureCache(graph, random.nextInt(200));
+
+                for (int job = 0; job < 10; job++) {
+                    Set<String> targets = new LinkedHashSet<>();
+                    int targetCount = 1 + random.nextInt(4);
+                    for (int j = 0; j < targetCount; j++) {
+                        targets.add("db.t" + random.nextInt(tables + 5));
+                    }
+                    Set<String> sources = new HashSet<>();
+                    int sourceCount = random.nextInt(4);
+                    for (int j = 0; j < sourceCount; j++) {
+                        sources.add((random.nextBoolean() ? "" : "db.") + "t" + random.nextInt(tables));
+                    }
+                    boolean ignoreDB = random.nextBoolean();
+                    long runTime = random.nextInt(3) == 0 ? QueryBase.NO_TIME : random.nextInt(1100);
+                    jobs++;
+
+                    TaskInfoCollector expected = new TaskInfoCollector("job" + job, targets, sources, ignoreDB);
+                    expected.findSqlWfs(expectedQueries, excludeTbls, excludeKeys);
+                    String expectedResult = result(expected);
+                    TaskInfoCollector expectedAsOf = new TaskInfoCollector("job" + job, targets, sources,
+                            ignoreDB);
+                    expectedAsOf.findSqlWfs(runTime == QueryBase.NO_TIME ? expectedQueries
+                            : expectedIndex.asOfMap(runTime), excludeTbls, excludeKeys);
+                    String expectedAsOfResult = result(expectedAsOf);
+
+                    TaskInfoCollector[] searched = new TaskInfoCollector[7];
+                    for (int i = 0; i < searched.length; i++) {
+                        searched[i] = new TaskInfoCollector("job" + job, targets, sources, ignoreDB);
+                    }
+                    searched[0].findSqlDfs(allQueries, excludeTbls, excludeKeys);
+                    searched[1].findSqlWfs(allQueries, exclusion);
+                    searched[2].findSqlWfs(context);
+                    searched[3].findSqlDfs(context);
+                    searched[4].findSqlCached(fullCache, context);
+                    searched[5].findSqlCached(smallCache, context);
+                    // As QueryAnalyzer.searchTask does.
+                    searched[6].setRunTime(runTime);
+                    searched[6].findSqlCached(smallCache, context);
+                    if (runTime != QueryBase.NO_TIME && runTime < index.getLatestTime()
+                            && searched[6].hasPathWrittenAfter(runTime)) {
+                        searched[6].findSqlWfs(index.asOfMap(runTime), exclusion);
+                    }
+                    String[] names = {"map dfs", "map wfs with filter", "graph wfs", "graph dfs", "cached",
+                            "cached with few closures", "as of run time " + runTime};
+                    for (int i = 0; i < searched.length; i++) {
+                        String want = i == 6 ? expectedAsOfResult : expectedResult;
+                        String actual = result(searched[i]);
+                        if (!want.equals(actual)) {
+                            mismatches++;
+                            if (mismatches <= MAX_PRINTED) {
+                                System.out.println("Graph " + g + (stored ? " stored" : "") + " job " + job + ": "
+                                        + names[i] + " differs from map wfs\n  expected " + want
+                                        + "\n  actual   " + actual);
+                            }
+                        }
+                    }
+                }
+            }
+        } finally {
+            QueryBase.setMetricsStore(null);
+        }
+        System.out.println("Checked " + jobs + " jobs on " + graphs + " graphs: " + mismatches + " mismatches");
+        if (mismatches > 0) {
+            System.exit(1);
+        }
+    }
+
+    /**
+     * Form the result of a search, with tables in sorted order.
+     * @param task Searched task.
+     * @return Found, missed and found source tables, metrics and the output line.
+     */
+    private static String result(TaskInfoCollector task) {
+        TaskMetrics metrics = task.getMetrics();
+        // Users, file formats and pools in the line are in the order of the sets they are merged into, so
+        // compare them sorted instead.
+        String[] columns = task.toString().split(",", -1);
+        for (int column : new int[] {1, 8, 9}) {
+            String[] values = columns[column].split("#");
+            Arrays.sort(values);
+            columns[column] = String.join("#", values);
+        }
+        return "found " + new TreeSet<>(task.getFound().keySet()) + ", missed " + new TreeSet<>(task.getMissed())
+                + ", sources " + new TreeSet<>(task.getSrcFound()) + ", duration " + metrics.getDuration()
+                + ", line " + String.join(",", columns);
+    }
+}
@@ -0,0 +1,116 @@
+package com.cloudera.sa.cm;
+
+import java.io.BufferedWriter;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+
+/**
+ * Benchmark of searching tasks one at a time against ParallelTaskEvaluator on a generated lineage.
+ * Tables are in layers, each written by one query reading tables of lower layers. Tasks target tables of
+ * the top layer. Reports tasks per second for each number of threads and checks the output is the same.
+ * Usage: TaskBenchmark [layers] [tables per layer] [tasks] [max threads]
+ */
+public class TaskBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        int layers = args.length > 0 ? Integer.parseInt(args[0]) : 10;
+        int perLayer = args.length > 1 ? Integer.parseInt(args[1]) : 2000;
+        int taskCount = args.length > 2 ? Integer.parseInt(args[2]) : 20000;
+        int maxThreads = args.length > 3 ? Integer.parseInt(args[3]) : Runtime.getRuntime().availableProcessors();
+
+        Random random = new Random(0);
+        Map<String, QueryBase> allQueries = new HashMap<>();
+        for (int layer = 1; layer <= layers; layer++) {
+            for (int i = 0; i < perLayer; i++) {
+                Set<String> sources = new HashSet<>();
+                int sourceCount = 2 + random.nextInt(4);
+                for (int j = 0; j < sourceCount; j++) {
+                    sources.add(table(random.nextInt(layer), random.nextInt(perLayer)));
+                }
+                TaskMetrics metrics = new TaskMetrics();
+                metrics.updateDuration(i);
+                metrics.addUser("user" + (i % 50));
+                String target = table(layer, i);
+                allQueries.put(target, new QueryBase("insert into " + target, metrics, sources,
+                        Collections.singleton(target)));
+            }
+        }
+        final LineageGraph graph = LineageGraph.build(allQueries, new HashSet<String>(), new HashSet<String>());
+
+        List<Set<String>[]> inputs = new ArrayList<>();
+        for (int t = 0; t < taskCount; t++) {
+            Set<String> targets = new HashSet<>();
+            // Some tasks are much larger than the others.
+            int targetCount = t % 100 == 0 ? 50 : 1 + random.nextInt(3);
+            for (int j = 0; j < targetCount; j++) {
+                targets.add(table(1 + random.nextInt(layers), random.nextInt(perLayer)));
+            }
+            Set<String> sources = new HashSet<>();
+            sources.add(table(random.nextInt(2), random.nextInt(perLayer)));
+            inputs.add(new Set[]{targets, sources});
+        }
+
+        String expected = null;
+        for (int round = 0; round < 2; round++) {
+            // Fresh cache each run, so every run computes the closures it needs.
+            long start = System.nanoTime();
+            ClosureCache cache = new ClosureCache(graph, Long.MAX_VALUE);
+            TraversalContext context = new TraversalContext(graph);
+            StringWriter serialOut = new StringWriter();
+            BufferedWriter serialWriter = new BufferedWriter(serialOut);
+            for (int t = 0; t < inputs.size(); t++) {
+                TaskInfoCollector task = task(t, inputs.get(t));
+                task.findSqlCached(cache, context);
+                serialWriter.write(task.toString());
+                serialWriter.newLine();
+            }
+            serialWriter.flush();
+            long serialNanos = System.nanoTime() - start;
+            expected = serialOut.toString();
+            print("serial", 1, taskCount, serialNanos);
+
+            for (int threads = 1; threads <= maxThreads; threads *= 2) {
+                start = System.nanoTime();
+                final ClosureCache shared = new ClosureCache(graph, Long.MAX_VALUE);
+                List<TaskInfoCollector> tasks = new ArrayList<>();
+                for (int t = 0; t < inputs.size(); t++) {
+                    tasks.add(task(t, inputs.get(t)));
+                }
+                StringWriter parallelOut = new StringWriter();
+                OrderedLineWriter writer = new OrderedLineWriter(new BufferedWriter(parallelOut));
+                new ParallelTaskEvaluator(graph, new ParallelTaskEvaluator.TaskSearch() {
+                    @Override
+                    public String search(TaskInfoCollector task, TraversalContext context) {
+                        task.findSqlCached(shared, context);
+                        return task.toString();
+                    }
+                }, threads).evaluate(tasks, writer);
+                writer.flush();
+                print("parallel", threads, taskCount, System.nanoTime() - start);
+                if (!expected.equals(parallelOut.toString())) {
+                    System.out.println("Output on " + threads + " threads differs from serial output");
+                }
+            }
+        }
+    }
+
+    private static String table(int layer, int index) {
+        return "l" + layer + ".t" + index;
+    }
+
+    private static TaskInfoCollector task(int index, Set<String>[] input) {
+        return new TaskInfoCollector("job" + index, input[0], input[1], false);
+    }
+
+    private static void print(String name, int threads, int tasks, long nanos) {
+        System.out.println(String.format("%-8s %2d threads %8.1f ms %10.1f tasks/s", name, threads, nanos / 1e6,
+                tasks / (nanos / 1e9)));
+    }
+}